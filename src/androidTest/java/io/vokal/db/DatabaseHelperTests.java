@@ -2,13 +2,18 @@ package io.vokal.db;
 
 import android.content.*;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.provider.BaseColumns;
 import android.test.ProviderTestCase2;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import io.vokal.db.test.models.*;
 import io.vokal.db.util.CursorGetter;
@@ -23,7 +28,8 @@ public class DatabaseHelperTests extends ProviderTestCase2<SimpleContentProvider
     protected void setUp() throws Exception {
         super.setUp();
         mContext = getMockContext();
-        DatabaseHelper.registerModel(mContext, ExtendedOne.class, ExtendedTwo.class, TestInterface.class);
+        DatabaseHelper.registerModel(mContext, ExtendedOne.class, ExtendedTwo.class, TestInterface.class, KeyedModel.class,
+                                     SkuModel.class);
     }
 
     public void testIsAbstractDAtaModel() {
@@ -68,6 +74,102 @@ public class DatabaseHelperTests extends ProviderTestCase2<SimpleContentProvider
         Log.d("DB", "ExtendedTwo columns: " + TextUtils.join(", ", columns));
     }
 
+    public void testTuningProfileApplied() {
+        TuningProfile profile = new TuningProfile.Builder()
+                .writeAheadLogging(true)
+                .synchronous(TuningProfile.SYNCHRONOUS_NORMAL)
+                .cacheSize(-4000)
+                .tempStore(TuningProfile.TEMP_STORE_MEMORY)
+                .journalSizeLimit(1024 * 1024)
+                .build();
+        DatabaseHelper helper = new DatabaseHelper(getMockContext(), "tuning.db", 1, profile);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        assertEquals("wal", pragma(db, "journal_mode").toLowerCase(Locale.US));
+        assertEquals("1", pragma(db, "synchronous"));
+        assertEquals("-4000", pragma(db, "cache_size"));
+        assertEquals("2", pragma(db, "temp_store"));
+        assertEquals(Integer.toString(1024 * 1024), pragma(db, "journal_size_limit"));
+
+        // each read connection gets the per-connection settings too
+        ReadConnectionPool pool = new ReadConnectionPool(db.getPath(), 2, profile);
+        for (int i = 0; i < 2; i++) {
+            SQLiteDatabase reader = pool.get(pool.acquire());
+            assertEquals("-4000", pragma(reader, "cache_size"));
+            assertEquals("2", pragma(reader, "temp_store"));
+        }
+        pool.close();
+        helper.close();
+    }
+
+    public void testQueriesUseReadConnectionPool() throws Exception {
+        SimpleContentProvider provider = getProvider();
+        assertNull(provider.getReadPoolStats());
+        provider.setTuningProfile(new TuningProfile.Builder().writeAheadLogging(true).readConnections(2).build());
+
+        final Uri uri = DatabaseHelper.getContentUri(ExtendedOne.class);
+        ExtendedOne model = new ExtendedOne();
+        model.setString1("pooled");
+        model.setInt1(1);
+        assertNotNull(getMockContentResolver().insert(uri, values(model)));
+
+        Thread[] readers = new Thread[4];
+        final int[] counts = new int[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            final int reader = i;
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+                    counts[reader] = c.getCount();
+                    c.close();
+                }
+            });
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        for (int count : counts) {
+            assertEquals(1, count);
+        }
+
+        ReadPoolStats stats = provider.getReadPoolStats();
+        assertNotNull(stats);
+        assertEquals(2, stats.getSize());
+        assertEquals(readers.length, stats.getQueries());
+        assertEquals(0, stats.getInFlight());
+
+        // an open cursor keeps its connection leased until it is closed, also across closing the pool
+        Cursor open = getMockContentResolver().query(uri, null, null, null, null);
+        assertEquals(1, provider.getReadPoolStats().getInFlight());
+        open.close();
+        open.close();
+        assertEquals(0, provider.getReadPoolStats().getInFlight());
+
+        open = getMockContentResolver().query(uri, null, null, null, null);
+        provider.setTuningProfile(new TuningProfile.Builder().writeAheadLogging(true).readConnections(1).build());
+        assertTrue(open.moveToFirst());
+        assertEquals("pooled", open.getString(open.getColumnIndex(ExtendedOne.COL_STRING)));
+        open.close();
+    }
+
+    private static ContentValues values(DataModelInterface aModel) {
+        ContentValues values = new ContentValues();
+        aModel.populateContentValues(values);
+        return values;
+    }
+
+    private static String pragma(SQLiteDatabase aDb, String aName) {
+        Cursor c = aDb.rawQuery("PRAGMA " + aName, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
     public void testTableCreate() throws Exception {
         SQLiteTable.TableCreator creator = DatabaseHelper.getTableCreator(TestInterface.class);
         assertNotNull(creator);
@@ -139,6 +241,564 @@ public class DatabaseHelperTests extends ProviderTestCase2<SimpleContentProvider
         assertEquals("new string", t.newString);
     }
 
+    public void testBulkInsertReusesCompiledStatement() {
+        List<TestInterface> models = new ArrayList<TestInterface>();
+        for (int i = 0; i < 50; i++) {
+            TestInterface t = new TestInterface();
+            t.setLong(i + 1);
+            t.setString("bulk " + i);
+            t.setDate(new Date());
+            models.add(t);
+        }
+        assertEquals(50, DatabaseHelper.bulkInsert(mContext, models));
+
+        ContentValues partial = new ContentValues();
+        partial.put(TestInterface.COL_LONG, 100);
+        partial.put(TestInterface.COL_STRING, "partial");
+        assertNotNull(getMockContentResolver().insert(DatabaseHelper.getContentUri(TestInterface.class), partial));
+
+        Cursor c = getMockContentResolver().query(DatabaseHelper.getContentUri(TestInterface.class),
+                                                  null, null, null, TestInterface.COL_LONG);
+        assertNotNull(c);
+        assertEquals(51, c.getCount());
+        assertTrue(c.moveToLast());
+
+        CursorGetter getter = new CursorGetter(c);
+        assertEquals("partial", getter.getString(TestInterface.COL_STRING));
+        assertTrue(c.moveToFirst());
+        assertEquals("bulk 0", getter.getString(TestInterface.COL_STRING));
+        c.close();
+    }
+
+    public void testDeclaredUpsertKeepsRowId() {
+        assertEquals(SQLiteDatabase.CONFLICT_ABORT, getProvider().getConflictRule("keyedmodel"));
+        assertEquals(SQLiteDatabase.CONFLICT_REPLACE, getProvider().getConflictRule("extendedone"));
+
+        Uri first = DatabaseHelper.save(mContext, new KeyedModel("a", "one"));
+        assertNotNull(first);
+        assertEquals(1, DatabaseHelper.bulkInsert(mContext, Arrays.asList(new KeyedModel("a", "two"))));
+
+        ContentValues values = new ContentValues();
+        new KeyedModel("a", "three").populateContentValues(values);
+        Uri second = getMockContentResolver().insert(DatabaseHelper.getContentUri(KeyedModel.class), values);
+        assertEquals(first, second);
+
+        Cursor c = getMockContentResolver().query(DatabaseHelper.getContentUri(KeyedModel.class), null, null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        assertTrue(c.moveToFirst());
+        CursorGetter getter = new CursorGetter(c);
+        assertEquals(ContentUris.parseId(first), getter.getLong(BaseColumns._ID));
+        assertEquals("three", getter.getString(KeyedModel.COL_VALUE));
+        c.close();
+    }
+
+    public void testUpsertKeyWithAbortOnDeclaredPrimaryKey() {
+        assertEquals(SQLiteDatabase.CONFLICT_ABORT, getProvider().getConflictRule("skumodel"));
+
+        Uri uri = DatabaseHelper.getContentUri(SkuModel.class);
+        Uri first = getMockContentResolver().insert(uri, values(new SkuModel("a-1", "one")));
+        assertNotNull(first);
+        assertEquals(first, getMockContentResolver().insert(uri, values(new SkuModel("a-1", "two"))));
+
+        try {
+            getMockContentResolver().insert(uri, values(new SkuModel("b-2", "two")));
+            fail("insert should abort on the unique name");
+        } catch (SQLiteConstraintException expected) {
+        }
+
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        assertTrue(c.moveToFirst());
+        CursorGetter getter = new CursorGetter(c);
+        assertEquals("a-1", getter.getString(SkuModel.COL_SKU));
+        assertEquals("two", getter.getString(SkuModel.COL_NAME));
+        c.close();
+    }
+
+    public void testUpsertByDeclaredPrimaryKeyKeepsColumns() {
+        TestInterface t = new TestInterface();
+        t.setLong(7);
+        t.setString("first");
+        t.setInteger(42);
+        t.setDate(new Date());
+        Uri first = getMockContentResolver().insert(DatabaseHelper.getUpsertUri(TestInterface.class), values(t));
+        assertNotNull(first);
+
+        ContentValues partial = new ContentValues();
+        partial.put(TestInterface.COL_LONG, 7);
+        partial.put(TestInterface.COL_STRING, "second");
+        assertEquals(first, getMockContentResolver().insert(DatabaseHelper.getUpsertUri(TestInterface.class), partial));
+
+        Cursor c = getMockContentResolver().query(DatabaseHelper.getContentUri(TestInterface.class), null, null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        assertTrue(c.moveToFirst());
+        CursorGetter getter = new CursorGetter(c);
+        assertEquals("second", getter.getString(TestInterface.COL_STRING));
+        assertEquals(42, getter.getInt(TestInterface.COL_INT));
+        c.close();
+    }
+
+    public void testReentrantWriteJoinsOuterTransaction() {
+        final Uri uri = DatabaseHelper.getContentUri(TestInterface.class);
+        final SimpleContentProvider provider = getProvider();
+        Iterator<ContentValues> rows = new Iterator<ContentValues>() {
+            int mNext;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < 3;
+            }
+
+            @Override
+            public ContentValues next() {
+                TestInterface t = new TestInterface();
+                t.setLong(++mNext);
+                t.setDate(new Date());
+                if (mNext == 2) {
+                    // a write from inside the provider's own transaction
+                    TestInterface nested = new TestInterface();
+                    nested.setLong(100);
+                    nested.setDate(new Date());
+                    assertNotNull(provider.insert(uri, values(nested)));
+                }
+                return values(t);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        assertEquals(3, provider.bulkInsert(uri, rows));
+
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        assertNotNull(c);
+        assertEquals(4, c.getCount());
+        c.close();
+    }
+
+    public void testYieldPolicyLimits() {
+        YieldPolicy policy = new YieldPolicy(10, 50);
+        assertFalse(policy.shouldYield(9, 49));
+        assertTrue(policy.shouldYield(10, 0));
+        assertTrue(policy.shouldYield(0, 50));
+
+        YieldPolicy rowsOnly = new YieldPolicy(10, 0);
+        assertFalse(rowsOnly.shouldYield(9, Long.MAX_VALUE));
+        assertTrue(rowsOnly.shouldYield(10, 0));
+        assertFalse(new YieldPolicy(0, 0).shouldYield(Integer.MAX_VALUE, Long.MAX_VALUE));
+
+        assertEquals(4000, YieldPolicy.DEFAULT.getSleepAfterYield());
+        assertEquals(500, YieldPolicy.DEFAULT.getMaxOperationsPerYieldPoint());
+    }
+
+    public void testStrictBatchFailsPastOperationLimit() {
+        getProvider().setYieldPolicy(new YieldPolicy(100, 100, 0, 5));
+        Uri uri = DatabaseHelper.getContentUri(TestInterface.class);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < 5; i++) {
+            TestInterface t = new TestInterface();
+            t.setLong(i + 1);
+            t.setDate(new Date());
+            operations.add(ContentProviderOperation.newInsert(uri).withValues(values(t)).build());
+        }
+        try {
+            assertEquals(5, getProvider().applyBatch(operations).length);
+        } catch (OperationApplicationException e) {
+            fail("batch at the limit should apply: " + e.getMessage());
+        }
+
+        operations.clear();
+        for (int i = 0; i < 6; i++) {
+            TestInterface t = new TestInterface();
+            t.setLong(i + 10);
+            t.setDate(new Date());
+            operations.add(ContentProviderOperation.newInsert(uri).withValues(values(t)).build());
+        }
+        try {
+            getProvider().applyBatch(operations);
+            fail("expected OperationApplicationException past the limit");
+        } catch (OperationApplicationException expected) {
+            // rolled back as a whole
+        }
+
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        assertNotNull(c);
+        assertEquals(5, c.getCount());
+        c.close();
+    }
+
+    public void testNestedBulkInsertDoesNotYield() {
+        // yield after every row and commit after every chunk of one, which nested writes must skip
+        getProvider().setYieldPolicy(new YieldPolicy(1, 0));
+        getProvider().setBatchMode(SQLiteContentProvider.BatchMode.CHUNKED, 1);
+
+        final Uri uri = DatabaseHelper.getContentUri(TestInterface.class);
+        final SimpleContentProvider provider = getProvider();
+        Iterator<ContentValues> rows = new Iterator<ContentValues>() {
+            int mNext;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < 3;
+            }
+
+            @Override
+            public ContentValues next() {
+                TestInterface t = new TestInterface();
+                t.setLong(++mNext);
+                t.setDate(new Date());
+                if (mNext == 2) {
+                    ContentValues[] nested = new ContentValues[3];
+                    for (int i = 0; i < nested.length; i++) {
+                        TestInterface n = new TestInterface();
+                        n.setLong(100 + i);
+                        n.setDate(new Date());
+                        nested[i] = values(n);
+                    }
+                    assertEquals(3, provider.bulkInsert(uri, nested));
+                    assertEquals(1, provider.bulkInsert(uri, Collections.singletonList(values(t)).iterator()));
+                }
+                return values(t);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        assertEquals(3, provider.bulkInsert(uri, rows));
+
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        assertNotNull(c);
+        assertEquals(6, c.getCount());
+        c.close();
+    }
+
+    public void testConcurrentWritersKeepOwnTransactions() throws Exception {
+        getProvider().setYieldPolicy(new YieldPolicy(10, 0));
+
+        final Uri uri = DatabaseHelper.getContentUri(TestInterface.class);
+        final int rowsPerWriter = 200;
+        Thread[] writers = new Thread[4];
+        final Throwable[] errors = new Throwable[writers.length];
+        for (int w = 0; w < writers.length; w++) {
+            final int writer = w;
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ContentValues[] values = new ContentValues[rowsPerWriter];
+                        for (int i = 0; i < rowsPerWriter; i++) {
+                            TestInterface t = new TestInterface();
+                            t.setLong(writer * rowsPerWriter + i + 1);
+                            t.setString("writer " + writer);
+                            t.setDate(new Date());
+                            values[i] = values(t);
+                        }
+                        getMockContentResolver().bulkInsert(uri, values);
+                        getMockContentResolver().delete(uri, TestInterface.COL_LONG + "=?",
+                                                        new String[] {Long.toString(writer * rowsPerWriter + 1)});
+                    } catch (Throwable e) {
+                        errors[writer] = e;
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        for (Throwable error : errors) {
+            if (error != null) throw new AssertionError(error);
+        }
+
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        assertNotNull(c);
+        assertEquals(writers.length * (rowsPerWriter - 1), c.getCount());
+        c.close();
+        assertEquals(0, getProvider().getNotificationUris().length);
+    }
+
+    public void testJoinProjectionBuiltAtRegistration() {
+        Uri join = DatabaseHelper.getJoinedContentUri(ExtendedOne.class, "_id", ExtendedTwo.class, "_id");
+        Map<String, String> projection = getProvider().getRoute(join).projection;
+        assertNotNull(projection);
+        assertEquals("extendedtwo.double1 AS extendedtwo_double1", projection.get("extendedtwo_double1"));
+        try {
+            projection.put("extra", "extra");
+            fail("projection maps are shared between threads and must not change");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        ExtendedOne model = new ExtendedOne();
+        model.setString1("joined");
+        getMockContentResolver().insert(DatabaseHelper.getContentUri(ExtendedOne.class), values(model));
+        Cursor c = getMockContentResolver().query(join, new String[] {"extendedone_string1"}, null, null, null);
+        assertTrue(c.moveToFirst());
+        assertEquals("joined", c.getString(0));
+        c.close();
+    }
+
+    public void testMultiWayJoin() {
+        JoinSpec spec = new JoinSpec.Builder(ExtendedOne.class)
+                .innerJoin(ExtendedTwo.class, ExtendedOne.class, ExtendedOne.COL_INT, ExtendedTwo.COL_INT)
+                .leftJoin(TestInterface.class, ExtendedOne.class, ExtendedOne.COL_INT, TestInterface.COL_INT)
+                .on(ExtendedTwo.class, ExtendedTwo.COL_STRING, TestInterface.COL_STRING)
+                .alias("label", ExtendedTwo.class, ExtendedTwo.COL_STRING)
+                .build();
+        Uri join = DatabaseHelper.getJoinedContentUri(spec);
+        assertEquals("extendedone_inner_extendedtwo_testinterface", join.getLastPathSegment());
+        assertEquals(join, DatabaseHelper.getJoinedContentUri(spec));
+
+        for (int i = 1; i <= 3; i++) {
+            ExtendedOne one = new ExtendedOne();
+            one.setInt1(i);
+            getMockContentResolver().insert(DatabaseHelper.getContentUri(ExtendedOne.class), values(one));
+        }
+        for (int i = 1; i <= 2; i++) {
+            ExtendedTwo two = new ExtendedTwo();
+            two.setInt1(i);
+            two.setString1("two " + i);
+            getMockContentResolver().insert(DatabaseHelper.getContentUri(ExtendedTwo.class), values(two));
+        }
+        TestInterface matching = new TestInterface();
+        matching.setInteger(1);
+        matching.setString("two 1");
+        getMockContentResolver().insert(DatabaseHelper.getContentUri(TestInterface.class), values(matching));
+        TestInterface other = new TestInterface();
+        other.setInteger(2);
+        other.setString("other");
+        getMockContentResolver().insert(DatabaseHelper.getContentUri(TestInterface.class), values(other));
+
+        Cursor c = getMockContentResolver().query(join, null, null, null, "extendedone_int1");
+        assertEquals(2, c.getCount());
+        CursorGetter getter = new CursorGetter(c);
+
+        assertTrue(c.moveToFirst());
+        assertEquals(1, getter.setTable("extendedtwo").getInt(ExtendedTwo.COL_INT));
+        assertEquals("two 1", getter.setTable("testinterface").getString(TestInterface.COL_STRING));
+        assertEquals("two 1", c.getString(c.getColumnIndex("label")));
+
+        // the composite key of the left join does not match the second row
+        assertTrue(c.moveToNext());
+        assertNull(getter.setTable("testinterface").getString(TestInterface.COL_STRING));
+        c.close();
+    }
+
+    public void testQueryPlanAnalyzerFlagsScans() {
+        QueryPlanAnalyzer analyzer = new QueryPlanAnalyzer();
+        getProvider().setQueryPlanAnalyzer(analyzer);
+
+        Uri uri = DatabaseHelper.getContentUri(ExtendedTwo.class);
+        for (int i = 0; i < 2; i++) {
+            getMockContentResolver().query(uri, null, ExtendedTwo.COL_LONG + "=?", new String[] {"1"},
+                                           ExtendedTwo.COL_STRING).close();
+        }
+        getMockContentResolver().query(ContentUris.withAppendedId(uri, 1), null, null, null, null).close();
+        getMockContentResolver().query(DatabaseHelper.getContentUri(KeyedModel.class), null,
+                                       KeyedModel.COL_KEY + "=?", new String[] {"a"}, null).close();
+
+        assertEquals(3, analyzer.getShapes().size());
+        List<QueryPlanAnalyzer.QueryShape> flagged = analyzer.getFlaggedShapes();
+        assertEquals(1, flagged.size());
+        assertEquals(2, flagged.get(0).getCount());
+        assertTrue(flagged.get(0).isFullScan());
+        assertTrue(flagged.get(0).usesTempSort());
+
+        Set<String> suggested = analyzer.getSuggestedIndexes().get(ExtendedTwo.class);
+        assertEquals(Collections.singleton("index(\"long1\", \"string1\")"), suggested);
+        String report = analyzer.getReport();
+        assertTrue(report.contains("2x "));
+        assertTrue(report.contains("ExtendedTwo: .index(\"long1\", \"string1\")"));
+
+        getProvider().setQueryPlanAnalyzer(null);
+    }
+
+    public void testRepeatedQueriesReuseSQL() {
+        Uri uri = DatabaseHelper.getContentUri(ExtendedOne.class);
+        ExtendedOne model = new ExtendedOne();
+        model.setString1("cached");
+        model.setInt1(3);
+        Uri item = getMockContentResolver().insert(uri, values(model));
+        assertNotNull(item);
+
+        QueryCache cache = getProvider().getQueryCache();
+        long hits = cache.getHits();
+        String[] projection = new String[] {BaseColumns._ID, ExtendedOne.COL_STRING};
+        for (int i = 0; i < 3; i++) {
+            Cursor c = getMockContentResolver().query(uri, projection, ExtendedOne.COL_INT + "=?",
+                                                      new String[] {"3"}, null);
+            assertEquals(1, c.getCount());
+            c.close();
+        }
+        assertEquals(hits + 2, cache.getHits());
+
+        // the item's _id is bound before the selection args
+        Cursor c = getMockContentResolver().query(item, projection, ExtendedOne.COL_STRING + "=?",
+                                                  new String[] {"cached"}, null);
+        assertEquals(1, c.getCount());
+        c.close();
+    }
+
+    public void testResultCacheInvalidatedByWrites() {
+        getProvider().setResultCacheSize(256 * 1024);
+        QueryResultCache cache = getProvider().getResultCache();
+        if (cache == null) return; // before Honeycomb
+
+        Uri uri = DatabaseHelper.getContentUri(ExtendedOne.class);
+        ExtendedOne model = new ExtendedOne();
+        model.setString1("first");
+        getMockContentResolver().insert(uri, values(model));
+
+        String[] projection = new String[] {BaseColumns._ID, ExtendedOne.COL_STRING};
+        Cursor c = getMockContentResolver().query(uri, projection, null, null, BaseColumns._ID);
+        assertEquals(1, c.getCount());
+        c.close();
+
+        long hits = cache.getHits();
+        c = getMockContentResolver().query(uri, projection, null, null, BaseColumns._ID);
+        assertEquals(hits + 1, cache.getHits());
+        assertTrue(c.moveToFirst());
+        assertEquals("first", c.getString(1));
+        c.close();
+
+        // other tables' writes keep the entry
+        getMockContentResolver().insert(DatabaseHelper.getContentUri(ExtendedTwo.class), values(new ExtendedTwo()));
+        assertEquals(1, cache.size());
+
+        model.setString1("second");
+        getMockContentResolver().insert(uri, values(model));
+        assertEquals(0, cache.size());
+
+        c = getMockContentResolver().query(uri, projection, null, null, BaseColumns._ID);
+        assertEquals(2, c.getCount());
+        c.close();
+        assertEquals(1, cache.size());
+
+        getProvider().setResultCacheSize(0);
+        assertNull(getProvider().getResultCache());
+    }
+
+    public void testResultCacheHitSkipsReadPool() {
+        SimpleContentProvider provider = getProvider();
+        provider.setTuningProfile(new TuningProfile.Builder().writeAheadLogging(true).readConnections(2).build());
+        provider.setResultCacheSize(256 * 1024);
+        QueryResultCache cache = provider.getResultCache();
+        if (cache == null) return; // before Honeycomb
+
+        Uri uri = DatabaseHelper.getContentUri(ExtendedOne.class);
+        getMockContentResolver().insert(uri, values(new ExtendedOne()));
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+
+        long queries = provider.getReadPoolStats().getQueries();
+        c = getMockContentResolver().query(uri, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+        assertEquals(queries, provider.getReadPoolStats().getQueries());
+
+        // a result that cannot fit is returned uncached
+        provider.setResultCacheSize(64);
+        cache = provider.getResultCache();
+        for (int i = 0; i < 10; i++) {
+            getMockContentResolver().insert(uri, values(new ExtendedOne()));
+        }
+        c = getMockContentResolver().query(uri, null, null, null, null);
+        assertEquals(11, c.getCount());
+        c.close();
+        assertEquals(0, cache.size());
+        provider.setResultCacheSize(0);
+    }
+
+    public void testChunkedBatchKeepsBackReferences() throws Exception {
+        getProvider().setBatchMode(SQLiteContentProvider.BatchMode.CHUNKED, 100);
+
+        Uri uri = DatabaseHelper.getContentUri(ExtendedOne.class);
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newInsert(uri).withValue(ExtendedOne.COL_STRING, "parent").build());
+        for (int i = 1; i < 1000; i++) {
+            ops.add(ContentProviderOperation.newInsert(uri)
+                            .withValue(ExtendedOne.COL_STRING, "child")
+                            .withValueBackReference(ExtendedOne.COL_LONG, 0)
+                            .build());
+        }
+
+        ContentProviderResult[] results = getMockContentResolver().applyBatch("com.vokal.database", ops);
+        assertEquals(1000, results.length);
+        long parentId = ContentUris.parseId(results[0].uri);
+
+        Cursor c = getMockContentResolver().query(uri, null, ExtendedOne.COL_LONG + "=?",
+                                                  new String[] {Long.toString(parentId)}, null);
+        assertNotNull(c);
+        assertEquals(999, c.getCount());
+        c.close();
+    }
+
+    public void testNotificationScopeCoalesces() throws Exception {
+        final List<Uri> dispatched = Collections.synchronizedList(new ArrayList<Uri>());
+        final CountDownLatch[] dispatches = {new CountDownLatch(1)};
+        NotificationCoalescer coalescer = new NotificationCoalescer(new NotificationCoalescer.Dispatcher() {
+            @Override
+            public void dispatch(Collection<Uri> aUris) {
+                dispatched.addAll(aUris);
+                dispatches[0].countDown();
+            }
+        });
+
+        Uri one = DatabaseHelper.getContentUri(ExtendedOne.class);
+        Uri two = DatabaseHelper.getContentUri(ExtendedTwo.class);
+
+        Closeable scope = coalescer.suspend();
+        for (int i = 0; i < 100; i++) {
+            coalescer.enqueue(new Uri[] {one, two});
+        }
+        assertTrue(dispatched.isEmpty());
+        scope.close();
+        assertEquals(2, dispatched.size());
+
+        dispatched.clear();
+        dispatches[0] = new CountDownLatch(1);
+        coalescer.setDebounce(50, 200);
+        coalescer.enqueue(new Uri[] {one});
+        coalescer.enqueue(new Uri[] {one});
+        assertTrue(dispatched.isEmpty());
+        assertTrue(dispatches[0].await(5, TimeUnit.SECONDS));
+        assertEquals(1, dispatched.size());
+        coalescer.shutdown();
+    }
+
+    public void testItemNotificationsCollapseIntoTable() {
+        Uri table = DatabaseHelper.getContentUri(ExtendedOne.class);
+        Uri item = ContentUris.withAppendedId(table, 5);
+        Uri other = DatabaseHelper.getContentUri(ExtendedTwo.class);
+
+        assertEquals(table, NotificationCoalescer.getTableUri(item));
+        assertNull(NotificationCoalescer.getTableUri(table));
+
+        Collection<Uri> uris = NotificationCoalescer.collapse(new Uri[] {item, ContentUris.withAppendedId(other, 1)});
+        assertEquals(2, uris.size());
+        assertTrue(uris.contains(item));
+
+        uris = NotificationCoalescer.collapse(new Uri[] {item, table});
+        assertEquals(1, uris.size());
+        assertTrue(uris.contains(table));
+
+        Uri[] many = new Uri[NotificationCoalescer.MAX_ITEM_URIS_PER_TABLE + 1];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = ContentUris.withAppendedId(table, i + 1);
+        }
+        uris = NotificationCoalescer.collapse(many);
+        assertEquals(1, uris.size());
+        assertTrue(uris.contains(table));
+    }
+
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();
@@ -0,0 +1,130 @@
+package io.vokal.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import io.vokal.db.test.models.*;
+
+/**
+ * Compares same-process calls through {@link LocalDataStore} with the {@link android.content.ContentResolver}.
+ * Both paths must return the same rows; timings are logged under the {@code LocalDataStoreBenchmark} tag.
+ */
+public class LocalDataStoreBenchmark extends ProviderTestCase2<SimpleContentProvider> {
+
+    private static final String TAG        = "LocalDataStoreBenchmark";
+    private static final int    ITERATIONS = 500;
+
+    public LocalDataStoreBenchmark() {
+        super(SimpleContentProvider.class, "com.vokal.database");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getMockContext();
+        DatabaseHelper.registerModel(mContext, ExtendedOne.class, ExtendedTwo.class, TestInterface.class);
+    }
+
+    public void testLocalStoreMatchesResolver() {
+        LocalDataStore store = new LocalDataStore(mContext);
+        assertTrue(store.isLocal());
+
+        ExtendedOne model = new ExtendedOne();
+        model.setString1("local");
+        model.setInt1(1);
+        Uri uri = store.save(model);
+        assertNotNull(uri);
+        assertEquals(model.getContentItemUri(), uri);
+
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+
+        assertTrue(store.delete(model));
+        c = store.query(ExtendedOne.class, null, null, null, null);
+        assertEquals(0, c.getCount());
+        c.close();
+        assertEquals(0, getProvider().getNotificationUris().length);
+
+        try {
+            store.query(Object.class, null, null, null, null);
+            fail("expected IllegalStateException for an unregistered class");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testBenchmarkSaveAndQuery() {
+        LocalDataStore store = new LocalDataStore(mContext);
+        Uri uri = DatabaseHelper.getContentUri(TestInterface.class);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            DatabaseHelper.save(mContext, model(i));
+        }
+        long resolverSave = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            store.save(model(ITERATIONS + i));
+        }
+        long localSave = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor c = getMockContentResolver().query(uri, null, TestInterface.COL_LONG + "=?",
+                                                      new String[] {Integer.toString(i + 1)}, null);
+            assertEquals(1, c.getCount());
+            c.close();
+        }
+        long resolverQuery = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor c = store.query(uri, null, TestInterface.COL_LONG + "=?", new String[] {Integer.toString(i + 1)}, null);
+            assertEquals(1, c.getCount());
+            c.close();
+        }
+        long localQuery = SystemClock.elapsedRealtime() - start;
+
+        // both paths must see the same rows, whichever wrote them
+        Cursor resolverRows = getMockContentResolver().query(uri, null, null, null, TestInterface.COL_LONG);
+        Cursor localRows = store.query(TestInterface.class, null, null, null, TestInterface.COL_LONG);
+        assertEquals(2 * ITERATIONS, resolverRows.getCount());
+        assertRowsEqual(resolverRows, localRows);
+        assertEquals(2 * ITERATIONS, store.count(TestInterface.class, null, null));
+
+        Log.i(TAG, String.format("%d saves: resolver %d ms, local %d ms", ITERATIONS, resolverSave, localSave));
+        Log.i(TAG, String.format("%d queries: resolver %d ms, local %d ms", ITERATIONS, resolverQuery, localQuery));
+    }
+
+    private static void assertRowsEqual(Cursor aExpected, Cursor aActual) {
+        try {
+            assertEquals(aExpected.getCount(), aActual.getCount());
+            assertEquals(Arrays.asList(aExpected.getColumnNames()), Arrays.asList(aActual.getColumnNames()));
+            while (aExpected.moveToNext()) {
+                assertTrue(aActual.moveToNext());
+                for (int i = 0; i < aExpected.getColumnCount(); i++) {
+                    assertEquals(aExpected.getString(i), aActual.getString(i));
+                }
+            }
+        } finally {
+            aExpected.close();
+            aActual.close();
+        }
+    }
+
+    private static TestInterface model(int aIndex) {
+        TestInterface model = new TestInterface();
+        model.setLong(aIndex + 1);
+        model.setString("benchmark " + aIndex);
+        model.setDate(new Date());
+        return model;
+    }
+}
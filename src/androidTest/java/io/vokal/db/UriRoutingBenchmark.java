@@ -0,0 +1,100 @@
+package io.vokal.db;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import io.vokal.db.test.models.*;
+
+/**
+ * Compares {@link SimpleContentProvider#getRoute} with the deprecated
+ * {@link SimpleContentProvider#getTableFromUri} shim that subclasses still call. Timings are logged
+ * under the {@code UriRoutingBenchmark} tag.
+ */
+public class UriRoutingBenchmark extends ProviderTestCase2<SimpleContentProvider> {
+
+    private static final String TAG        = "UriRoutingBenchmark";
+    private static final int    ITERATIONS = 100000;
+
+    public UriRoutingBenchmark() {
+        super(SimpleContentProvider.class, "com.vokal.database");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getMockContext();
+        DatabaseHelper.registerModel(mContext, ExtendedOne.class, ExtendedTwo.class, TestInterface.class);
+    }
+
+    public void testRoutes() {
+        SimpleContentProvider provider = getProvider();
+        Uri table = DatabaseHelper.getContentUri(ExtendedOne.class);
+        Uri join = DatabaseHelper.getJoinedContentUri(ExtendedOne.class, "_id", ExtendedTwo.class, "_id");
+
+        SimpleContentProvider.Route route = provider.getRoute(table);
+        assertEquals("extendedone", route.table);
+        assertFalse(route.item);
+        assertNull(route.join);
+        assertSame(route, provider.getRoute(table));
+
+        route = provider.getRoute(ContentUris.withAppendedId(table, 42));
+        assertEquals("extendedone", route.table);
+        assertTrue(route.item);
+
+        route = provider.getRoute(join);
+        assertNotNull(route.join);
+
+        assertNull(provider.getRoute(Uri.withAppendedPath(table, "abc")));
+        assertNull(provider.getRoute(Uri.parse("content://other.authority/extendedone")));
+        assertNotNull(provider.getRoute(DatabaseHelper.getUpsertUri(ExtendedOne.class)));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkRouting() {
+        Uri[] uris = new Uri[] {
+                DatabaseHelper.getContentUri(TestInterface.class),
+                ContentUris.withAppendedId(DatabaseHelper.getContentUri(ExtendedTwo.class), 7),
+                DatabaseHelper.getJoinedContentUri(ExtendedOne.class, "_id", ExtendedTwo.class, "_id")
+        };
+
+        // the deprecated shim must describe the same route
+        SimpleContentProvider provider = getProvider();
+        for (Uri uri : uris) {
+            SimpleContentProvider.Route route = provider.getRoute(uri);
+            SimpleContentProvider.UriMatch match = provider.getTableFromUri(uri);
+            assertNotNull(route);
+            assertNotNull(match);
+            assertEquals(route.table, match.table);
+            assertEquals(route.item, match.item);
+            assertEquals(route.join != null, match.join);
+            assertTrue(match.index >= 0);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        int found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (provider.getTableFromUri(uris[i % uris.length]) != null) {
+                found++;
+            }
+        }
+        long shim = SystemClock.elapsedRealtime() - start;
+        assertEquals(ITERATIONS, found);
+
+        start = SystemClock.elapsedRealtime();
+        found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (provider.getRoute(uris[i % uris.length]) != null) {
+                found++;
+            }
+        }
+        long routes = SystemClock.elapsedRealtime() - start;
+        assertEquals(ITERATIONS, found);
+
+        Log.i(TAG, String.format("%d lookups: getTableFromUri %d ms, getRoute %d ms", ITERATIONS, shim, routes));
+        // the shim looks up the route and then copies it, so it cannot be meaningfully faster
+        assertTrue("getRoute " + routes + " ms, getTableFromUri " + shim + " ms", routes <= shim + 50);
+    }
+}
@@ -1,5 +1,6 @@
 package io.vokal.db.test;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
@@ -9,10 +10,22 @@ import android.test.ProviderTestCase2;
 
 import io.vokal.db.*;
 import io.vokal.db.test.models.*;
+import io.vokal.db.util.CursorGetter;
 import io.vokal.db.util.ObjectCursor;
+import io.vokal.db.util.ObjectCursorLoader;
+import io.vokal.db.util.ObjectPageLoader;
+import io.vokal.db.util.PagedObjectList;
+import io.vokal.db.util.ProjectedCursorCreator;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class AbstractDataModelTests extends ProviderTestCase2<SimpleContentProvider> {
 
@@ -26,7 +39,8 @@ public class AbstractDataModelTests extends ProviderTestCase2<SimpleContentProvi
     protected void setUp() throws Exception {
         super.setUp();
         mContext = getMockContext();
-        DatabaseHelper.registerModel(mContext, ExtendedOne.class, ExtendedTwo.class, TestInterface.class);
+        DatabaseHelper.registerModel(mContext, ExtendedOne.class, ExtendedTwo.class, TestInterface.class, NoteModel.class,
+                                    TagModel.class);
     }
 
     public void testInsert() {
@@ -64,6 +78,11 @@ public class AbstractDataModelTests extends ProviderTestCase2<SimpleContentProvi
         assertNotNull(uri);
         boolean success = testModel.delete(mContext);
         assertTrue(success);
+
+        Cursor c = getMockContentResolver().query(testModel.getContentUri(), null, null, null, null);
+        assertEquals(0, c.getCount());
+        c.close();
+        assertFalse(testModel.delete(mContext));
     }
 
     public void testBulkInsert() {
@@ -95,6 +114,440 @@ public class AbstractDataModelTests extends ProviderTestCase2<SimpleContentProvi
 
     }
 
+    public void testStreamInsert() throws Exception {
+        final int total = 2000;
+        Iterator<ExtendedOne> models = new Iterator<ExtendedOne>() {
+            int mCount;
+
+            @Override
+            public boolean hasNext() {
+                return mCount < total;
+            }
+
+            @Override
+            public ExtendedOne next() {
+                ExtendedOne model = new ExtendedOne();
+                model.setString1("streamed " + mCount);
+                model.setInt1(mCount);
+                model.setLong1(mCount++);
+                model.setDouble1(0.5);
+                return model;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        int count = AbstractDataModel.streamInsert(mContext, ExtendedOne.class, models);
+        assertEquals(total, count);
+
+        Cursor c = getMockContentResolver().query(DatabaseHelper.getContentUri(ExtendedOne.class), null, null, null,
+                                                  ExtendedOne.COL_LONG + " DESC");
+        ObjectCursor<ExtendedOne> cursor = new ObjectCursor<ExtendedOne>(c, ExtendedOne.CURSOR_CREATOR);
+        assertEquals(total, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("streamed 1999", cursor.getModel().getString1());
+        assertEquals(0.5, cursor.getModel().getDouble1());
+        cursor.close();
+    }
+
+    public void testStreamInsertRollsBackOnIteratorFailure() throws Exception {
+        Iterator<ExtendedOne> models = new Iterator<ExtendedOne>() {
+            int mCount;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public ExtendedOne next() {
+                if (mCount == 100) throw new IllegalArgumentException("bad model");
+                ExtendedOne model = new ExtendedOne();
+                model.setString1("partial " + mCount);
+                model.setLong1(mCount++);
+                return model;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        try {
+            AbstractDataModel.streamInsert(mContext, ExtendedOne.class, models);
+            fail("the iterator's exception must reach the caller");
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad model", e.getMessage());
+        }
+
+        Cursor c = getMockContentResolver().query(DatabaseHelper.getContentUri(ExtendedOne.class), null, null, null, null);
+        assertEquals(0, c.getCount());
+        c.close();
+    }
+
+    public void testSaveAllMixedModels() throws Exception {
+        ExtendedOne one = new ExtendedOne();
+        one.setString1("one");
+        one.setInt1(1);
+
+        ExtendedTwo two = new ExtendedTwo();
+        two.setString1("two");
+        two.setInt1(2);
+
+        ExtendedOne three = new ExtendedOne();
+        three.setString1("three");
+        three.setInt1(3);
+
+        TestInterface four = new TestInterface();
+        four.setString("four");
+        four.setLong(4);
+        four.setDate(new Date());
+
+        List<DataModelInterface> models = new ArrayList<DataModelInterface>();
+        models.add(one);
+        models.add(two);
+        models.add(three);
+        models.add(four);
+
+        Uri[] uris = DatabaseHelper.saveAll(mContext, models);
+        assertEquals(4, uris.length);
+        for (Uri uri : uris) {
+            assertNotNull(uri);
+        }
+        assertTrue(one.getId() > 0);
+        assertTrue(two.getId() > 0);
+        assertEquals(one.getContentItemUri(), uris[0]);
+        assertEquals(three.getContentItemUri(), uris[2]);
+
+        Cursor c = getMockContentResolver().query(DatabaseHelper.getContentUri(ExtendedOne.class), null, null, null, null);
+        assertEquals(2, c.getCount());
+        c.close();
+
+        one.setString1("one updated");
+        DatabaseHelper.saveAll(mContext, models);
+        c = getMockContentResolver().query(one.getContentItemUri(), null, null, null, null);
+        ObjectCursor<ExtendedOne> cursor = new ObjectCursor<ExtendedOne>(c, ExtendedOne.CURSOR_CREATOR);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("one updated", cursor.getModel().getString1());
+        cursor.close();
+    }
+
+    public void testWriteQueueGroupsSavesAndDeletes() throws Exception {
+        WriteQueue queue = new WriteQueue(mContext, 50, 1000);
+        List<ExtendedOne> models = new ArrayList<ExtendedOne>();
+        List<Future<Uri>> saves = new ArrayList<Future<Uri>>();
+        for (int i = 0; i < 20; i++) {
+            ExtendedOne model = new ExtendedOne();
+            model.setString1("queued " + i);
+            model.setInt1(i + 1);
+            models.add(model);
+            saves.add(queue.save(model));
+        }
+        for (int i = 0; i < saves.size(); i++) {
+            Uri uri = saves.get(i).get(5, TimeUnit.SECONDS);
+            assertNotNull(uri);
+            assertEquals(models.get(i).getContentItemUri(), uri);
+        }
+
+        assertEquals(Integer.valueOf(1), queue.delete(models.get(0)).get(5, TimeUnit.SECONDS));
+        queue.flush();
+        queue.shutdown();
+
+        Cursor c = getMockContentResolver().query(DatabaseHelper.getContentUri(ExtendedOne.class), null, null, null, null);
+        assertEquals(19, c.getCount());
+        c.close();
+
+        try {
+            queue.save(new ExtendedOne());
+            fail("save after shutdown should be rejected");
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    public void testWriteQueueFailsWholeGroupUnlessStrict() throws Exception {
+        Uri uri = DatabaseHelper.getContentUri(ExtendedOne.class);
+        for (SQLiteContentProvider.BatchMode mode : SQLiteContentProvider.BatchMode.values()) {
+            getProvider().setBatchMode(mode);
+            WriteQueue queue = new WriteQueue(mContext, 10, 1000);
+            ExtendedOne model = new ExtendedOne();
+            model.setString1(mode.name());
+            Future<Uri> save = queue.save(model);
+            Future<Integer> broken = queue.delete(uri, "no_such_column=?", new String[] {"1"});
+            queue.flush();
+            queue.shutdown();
+
+            try {
+                broken.get(5, TimeUnit.SECONDS);
+                fail("delete with an unknown column should fail");
+            } catch (ExecutionException expected) {
+            }
+            try {
+                assertNotNull(save.get(5, TimeUnit.SECONDS));
+                assertEquals(SQLiteContentProvider.BatchMode.STRICT, mode);
+            } catch (ExecutionException e) {
+                assertFalse(mode == SQLiteContentProvider.BatchMode.STRICT);
+            }
+        }
+    }
+
+    public void testPagedLoaderReadsByKeyset() throws Exception {
+        Uri uri = DatabaseHelper.getContentUri(ExtendedTwo.class);
+        List<ExtendedTwo> models = new ArrayList<ExtendedTwo>();
+        for (int i = 0; i < 25; i++) {
+            ExtendedTwo model = new ExtendedTwo();
+            model.setInt1(i + 1);
+            model.setLong1(i % 4);
+            model.save(mContext);
+            models.add(model);
+        }
+
+        Uri limited = uri.buildUpon().appendQueryParameter(SimpleContentProvider.PARAM_LIMIT, "3").build();
+        Cursor c = getMockContentResolver().query(limited, null, null, null, null);
+        assertEquals(3, c.getCount());
+        c.close();
+
+        // ties on the sort column are ordered by _id
+        Cursor expected = getMockContentResolver().query(uri, new String[] {"_id"}, null, null,
+                                                         ExtendedTwo.COL_LONG + " DESC, _id DESC");
+        long[] ids = new long[expected.getCount()];
+        for (int i = 0; expected.moveToNext(); i++) {
+            ids[i] = expected.getLong(0);
+        }
+        expected.close();
+
+        ObjectPageLoader<ExtendedTwo> loader = new ObjectPageLoader<ExtendedTwo>(mContext, uri, null, null, null,
+                ExtendedTwo.COL_LONG, true, ExtendedTwo.CURSOR_CREATOR).setPageSize(10).setMaxPages(2);
+        PagedObjectList<ExtendedTwo> list = loader.loadInBackground();
+        assertEquals(10, list.getCount());
+        assertTrue(list.hasNext());
+
+        final CountDownLatch[] loaded = {new CountDownLatch(1)};
+        list.setOnPagesChangedListener(new PagedObjectList.OnPagesChangedListener() {
+            @Override
+            public void onPagesChanged(PagedObjectList<?> aList) {
+                loaded[0].countDown();
+            }
+        });
+
+        assertEquals(ids[9], list.get(9).getId());
+        assertTrue(loaded[0].await(5, TimeUnit.SECONDS));
+        assertEquals(20, list.getCount());
+
+        loaded[0] = new CountDownLatch(1);
+        assertEquals(ids[19], list.get(19).getId());
+        assertTrue(loaded[0].await(5, TimeUnit.SECONDS));
+        assertEquals(25, list.getCount());
+        assertFalse(list.hasNext());
+
+        // only two pages are kept
+        assertEquals(-1, list.getItemId(0));
+        for (int i = 10; i < 25; i++) {
+            assertEquals(ids[i], list.getItemId(i));
+        }
+        list.close();
+    }
+
+    public void testAggregateQueries() {
+        assertEquals(0, DatabaseHelper.count(mContext, ExtendedTwo.class, null, null));
+        assertFalse(DatabaseHelper.exists(mContext, ExtendedTwo.class, null, null));
+
+        for (int i = 0; i < 10; i++) {
+            ExtendedTwo model = new ExtendedTwo();
+            model.setInt1(i + 1);
+            model.setLong1(i % 2);
+            model.save(mContext);
+        }
+
+        assertEquals(10, DatabaseHelper.count(mContext, ExtendedTwo.class, null, null));
+        String byInt = ExtendedTwo.COL_INT + "=?";
+        assertEquals(5, DatabaseHelper.count(mContext, ExtendedTwo.class, ExtendedTwo.COL_LONG + "=?", new String[] {"1"}));
+        assertTrue(DatabaseHelper.exists(mContext, ExtendedTwo.class, byInt, new String[] {"10"}));
+        assertFalse(DatabaseHelper.exists(mContext, ExtendedTwo.class, byInt, new String[] {"11"}));
+
+        // 1 + 3 + 5 + 7 + 9 and 2 + 4 + 6 + 8 + 10
+        Uri sums = DatabaseHelper.getAggregateUri(ExtendedTwo.class, "sum", ExtendedTwo.COL_INT, ExtendedTwo.COL_LONG);
+        Cursor c = getMockContentResolver().query(sums, null, null, null, ExtendedTwo.COL_LONG);
+        assertEquals(2, c.getCount());
+        assertTrue(c.moveToFirst());
+        assertEquals(0, c.getLong(0));
+        assertEquals(25, c.getLong(c.getColumnIndex(SimpleContentProvider.COLUMN_VALUE)));
+        assertTrue(c.moveToNext());
+        assertEquals(30, c.getLong(c.getColumnIndex(SimpleContentProvider.COLUMN_VALUE)));
+        c.close();
+
+        Uri count = Uri.withAppendedPath(DatabaseHelper.getContentUri(ExtendedTwo.class), SimpleContentProvider.PATH_COUNT);
+        assertNull(getMockContentResolver().insert(count, new ContentValues()));
+        assertEquals(0, getMockContentResolver().delete(count, null, null));
+        assertEquals(10, DatabaseHelper.count(mContext, ExtendedTwo.class, null, null));
+
+        try {
+            Uri invalid = DatabaseHelper.getAggregateUri(ExtendedTwo.class, "sum", "int1); DROP", null);
+            getMockContentResolver().query(invalid, null, null, null, null);
+            fail("aggregate columns must be plain column names");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testLoaderQueriesDeclaredColumns() {
+        ExtendedTwo model = new ExtendedTwo();
+        model.setInt1(1);
+        model.setString1("projected");
+        model.save(mContext);
+
+        ProjectedCursorCreator<ExtendedTwo> creator = new ProjectedCursorCreator<ExtendedTwo>() {
+            @Override
+            public String[] getColumns() {
+                return new String[] {ExtendedTwo.COL_STRING};
+            }
+
+            @Override
+            public ExtendedTwo createFromCursorGetter(CursorGetter getter) {
+                ExtendedTwo model = new ExtendedTwo();
+                model.setString1(getter.getString(ExtendedTwo.COL_STRING));
+                return model;
+            }
+        };
+
+        Uri uri = DatabaseHelper.getContentUri(ExtendedTwo.class);
+        ObjectCursor<ExtendedTwo> cursor = new ObjectCursorLoader<ExtendedTwo>(mContext, uri, creator).loadInBackground();
+        assertEquals(1, cursor.getColumnCount());
+        assertEquals("projected", cursor.getList().get(0).getString1());
+
+        try {
+            cursor.moveToFirst();
+            new CursorGetter(cursor).setStrict(true).getLong(ExtendedTwo.COL_LONG);
+            fail("strict getters must not read undeclared columns");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        cursor.close();
+    }
+
+    public void testIdentityMapSharesModels() {
+        ExtendedTwo model = new ExtendedTwo();
+        model.setString1("shared");
+        model.save(mContext);
+
+        IdentityMap.enable(ExtendedTwo.class);
+        try {
+            Uri uri = DatabaseHelper.getContentUri(ExtendedTwo.class);
+            ObjectCursor<ExtendedTwo> first = new ObjectCursorLoader<ExtendedTwo>(
+                    mContext, uri, ExtendedTwo.CURSOR_CREATOR).loadInBackground();
+            ObjectCursor<ExtendedTwo> second = new ObjectCursorLoader<ExtendedTwo>(
+                    mContext, uri, ExtendedTwo.CURSOR_CREATOR).loadInBackground();
+            ExtendedTwo shared = first.getList().get(0);
+            assertSame(shared, second.getList().get(0));
+
+            // saving keeps the instance mapped
+            shared.setString1("saved");
+            shared.save(mContext);
+            ObjectCursor<ExtendedTwo> third = new ObjectCursorLoader<ExtendedTwo>(
+                    mContext, uri, ExtendedTwo.CURSOR_CREATOR).loadInBackground();
+            assertSame(shared, third.getList().get(0));
+
+            // other writes evict it
+            ContentValues values = new ContentValues();
+            values.put(ExtendedTwo.COL_STRING, "updated");
+            mContext.getContentResolver().update(uri, values, null, null);
+            ObjectCursor<ExtendedTwo> fourth = new ObjectCursorLoader<ExtendedTwo>(
+                    mContext, uri, ExtendedTwo.CURSOR_CREATOR).loadInBackground();
+            ExtendedTwo reloaded = fourth.getList().get(0);
+            assertNotSame(shared, reloaded);
+            assertEquals("updated", reloaded.getString1());
+            assertEquals("saved", shared.getString1());
+
+            first.close();
+            second.close();
+            third.close();
+            fourth.close();
+        } finally {
+            IdentityMap.disable(ExtendedTwo.class);
+        }
+    }
+
+    public void testFullTextSearch() {
+        String[] strings = {"coffee beans", "green tea", "coffee cake with coffee"};
+        List<NoteModel> notes = new ArrayList<NoteModel>();
+        for (int i = 0; i < strings.length; i++) {
+            NoteModel note = new NoteModel(i + 1, strings[i]);
+            note.save(mContext);
+            notes.add(note);
+        }
+
+        Uri search = DatabaseHelper.getSearchUri(NoteModel.class, "coffee");
+        Cursor c = getMockContentResolver().query(search, null, null, null, null);
+        assertEquals(2, c.getCount());
+        assertTrue(c.moveToFirst());
+        assertEquals("coffee cake with coffee", c.getString(c.getColumnIndex(NoteModel.COL_TEXT)));
+        assertEquals(2, c.getInt(c.getColumnIndex(SimpleContentProvider.COLUMN_RANK)));
+        c.close();
+
+        // the triggers follow updates, deletes and replaced rows
+        NoteModel tea = notes.get(1);
+        tea.text = "iced coffee";
+        tea.save(mContext);
+        notes.get(0).delete(mContext);
+        new NoteModel(3, "cheesecake").save(mContext);
+
+        c = getMockContentResolver().query(search, new String[] {NoteModel.COL_TEXT}, null, null, null);
+        assertEquals(1, c.getCount());
+        assertTrue(c.moveToFirst());
+        assertEquals("iced coffee", c.getString(0));
+        c.close();
+
+        c = getMockContentResolver().query(DatabaseHelper.getSearchUri(NoteModel.class, "chee*"), null,
+                                           NoteModel.COL_NUMBER + "=?", new String[] {"3"}, null);
+        assertEquals(1, c.getCount());
+        c.close();
+    }
+
+    public void testPagedLoaderKeepsRealKeys() throws Exception {
+        // keys that only differ past the 15 digits of their text form
+        Uri uri = DatabaseHelper.getContentUri(ExtendedOne.class);
+        for (int i = 0; i < 6; i++) {
+            ExtendedOne model = new ExtendedOne();
+            model.setInt1(i + 1);
+            model.setDouble1(1 + i * Math.ulp(1.0));
+            model.save(mContext);
+        }
+
+        Cursor expected = getMockContentResolver().query(uri, new String[] {"_id"}, null, null,
+                                                         ExtendedOne.COL_DOUBLE + " ASC, _id ASC");
+        long[] ids = new long[expected.getCount()];
+        for (int i = 0; expected.moveToNext(); i++) {
+            ids[i] = expected.getLong(0);
+        }
+        expected.close();
+
+        ObjectPageLoader<ExtendedOne> loader = new ObjectPageLoader<ExtendedOne>(mContext, uri, null, null, null,
+                ExtendedOne.COL_DOUBLE, false, ExtendedOne.CURSOR_CREATOR).setPageSize(2).setMaxPages(3);
+        PagedObjectList<ExtendedOne> list = loader.loadInBackground();
+
+        final CountDownLatch[] loaded = {new CountDownLatch(1)};
+        list.setOnPagesChangedListener(new PagedObjectList.OnPagesChangedListener() {
+            @Override
+            public void onPagesChanged(PagedObjectList<?> aList) {
+                loaded[0].countDown();
+            }
+        });
+        for (int position = 1; list.hasNext(); position += 2) {
+            loaded[0] = new CountDownLatch(1);
+            list.get(position);
+            assertTrue(loaded[0].await(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(ids.length, list.getCount());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], list.getItemId(i));
+        }
+        list.close();
+    }
+
     public void testUpdate() {
         ExtendedOne testModel = new ExtendedOne();
         testModel.setBoolean1(false);
@@ -127,6 +580,33 @@ public class AbstractDataModelTests extends ProviderTestCase2<SimpleContentProvi
 
     }
 
+    public void testUpdateDeclaredKey() {
+        TagModel tag = new TagModel("news", 1);
+        assertNotNull(tag.save(mContext));
+        final long id = tag.getId();
+        assertTrue(id > 0);
+
+        tag.uses = 2;
+        Uri uri = tag.save(mContext);
+        assertNotNull(uri);
+        assertEquals(id, tag.getId());
+
+        Cursor c = getMockContentResolver().query(DatabaseHelper.getContentUri(TagModel.class), null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+
+        c = getMockContentResolver().query(uri, null, null, null, null);
+        assertTrue(c.moveToFirst());
+        assertEquals("news", c.getString(c.getColumnIndex(TagModel.COL_NAME)));
+        assertEquals(2, c.getInt(c.getColumnIndex(TagModel.COL_USES)));
+        c.close();
+
+        assertTrue(tag.delete(mContext));
+        c = getMockContentResolver().query(DatabaseHelper.getContentUri(TagModel.class), null, null, null, null);
+        assertEquals(0, c.getCount());
+        c.close();
+    }
+
     public void testWipeDatabase() {
         ExtendedOne testModel = new ExtendedOne();
         testModel.setBoolean1(false);
@@ -153,6 +153,35 @@ public class DataModelInterfaceTests extends ProviderTestCase2<SimpleContentProv
         }
     }
 
+    public void testSaveUpdatesByPrimaryKey() {
+        TestInterface first = new TestInterface();
+        first.setString("first");
+        first.setLong(1);
+        first.setDate(new Date());
+        assertNotNull(DatabaseHelper.save(mContext, first));
+
+        TestInterface second = new TestInterface();
+        second.setString("second");
+        second.setLong(2);
+        second.setDate(new Date());
+        Uri secondUri = DatabaseHelper.save(mContext, second);
+        assertNotNull(secondUri);
+
+        first.setString("first updated");
+        Uri firstUri = DatabaseHelper.save(mContext, first);
+        assertNotNull(firstUri);
+        assertFalse(firstUri.equals(secondUri));
+
+        mCursor = getMockContentResolver().query(DatabaseHelper.getContentUri(TestInterface.class), null, null, null,
+                                                 TestInterface.COL_LONG);
+        ObjectCursor<TestInterface> cursor = new ObjectCursor<TestInterface>(mCursor, TestInterface.CURSOR_CREATOR);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("first updated", cursor.getModel().getString());
+        assertTrue(cursor.moveToNext());
+        assertEquals("second", cursor.getModel().getString());
+    }
+
     public void testWipeDatabase() {
         Date date = new Date();
         TestInterface testModel = new TestInterface();
@@ -0,0 +1,43 @@
+package io.vokal.db.test.models;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import io.vokal.db.DataModelInterface;
+import io.vokal.db.SQLiteTable;
+
+public class KeyedModel implements DataModelInterface {
+
+    public static final String COL_KEY   = "key";
+    public static final String COL_VALUE = "value";
+
+    public String key;
+    public String value;
+
+    public KeyedModel() {}
+
+    public KeyedModel(String aKey, String aValue) {
+        key = aKey;
+        value = aValue;
+    }
+
+    @Override
+    public SQLiteTable onTableCreate(SQLiteTable.Builder aBuilder) {
+        return aBuilder.addStringColumn(COL_KEY).unique()
+                .addStringColumn(COL_VALUE)
+                .upsert(COL_KEY)
+                .onConflict(SQLiteDatabase.CONFLICT_ABORT)
+                .build();
+    }
+
+    @Override
+    public SQLiteTable onTableUpgrade(SQLiteTable.Upgrader aUpgrader, int aOldVersion) {
+        return null;
+    }
+
+    @Override
+    public void populateContentValues(ContentValues aValues) {
+        aValues.put(COL_KEY, key);
+        aValues.put(COL_VALUE, value);
+    }
+}
@@ -0,0 +1,37 @@
+package io.vokal.db.test.models;
+
+import android.content.ContentValues;
+
+import io.vokal.db.AbstractDataModel;
+import io.vokal.db.SQLiteTable;
+
+public class NoteModel extends AbstractDataModel {
+
+    public static final String COL_NUMBER = "number";
+    public static final String COL_TEXT   = "text";
+
+    public int    number;
+    public String text;
+
+    public NoteModel() {}
+
+    public NoteModel(int aNumber, String aText) {
+        number = aNumber;
+        text = aText;
+    }
+
+    @Override
+    public SQLiteTable onTableCreate(SQLiteTable.Builder aBuilder) {
+        return aBuilder.addIntegerColumn(COL_NUMBER).unique()
+                .addStringColumn(COL_TEXT)
+                .fullText(COL_TEXT)
+                .build();
+    }
+
+    @Override
+    public void populateContentValues(ContentValues aValues) {
+        aValues.put(COL_NUMBER, number);
+        aValues.put(COL_TEXT, text);
+        super.populateContentValues(aValues);
+    }
+}
@@ -0,0 +1,43 @@
+package io.vokal.db.test.models;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import io.vokal.db.DataModelInterface;
+import io.vokal.db.SQLiteTable;
+
+public class SkuModel implements DataModelInterface {
+
+    public static final String COL_SKU  = "sku";
+    public static final String COL_NAME = "name";
+
+    public String sku;
+    public String name;
+
+    public SkuModel() {}
+
+    public SkuModel(String aSku, String aName) {
+        sku = aSku;
+        name = aName;
+    }
+
+    @Override
+    public SQLiteTable onTableCreate(SQLiteTable.Builder aBuilder) {
+        return aBuilder.addStringColumn(COL_SKU).primaryKey()
+                .addStringColumn(COL_NAME).unique()
+                .upsert(COL_SKU)
+                .onConflict(SQLiteDatabase.CONFLICT_ABORT)
+                .build();
+    }
+
+    @Override
+    public SQLiteTable onTableUpgrade(SQLiteTable.Upgrader aUpgrader, int aOldVersion) {
+        return null;
+    }
+
+    @Override
+    public void populateContentValues(ContentValues aValues) {
+        aValues.put(COL_SKU, sku);
+        aValues.put(COL_NAME, name);
+    }
+}
@@ -0,0 +1,42 @@
+package io.vokal.db.test.models;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import io.vokal.db.AbstractDataModel;
+import io.vokal.db.SQLiteTable;
+
+public class TagModel extends AbstractDataModel {
+
+    public static final String COL_NAME = "name";
+    public static final String COL_USES = "uses";
+
+    public String name;
+    public int    uses;
+
+    public TagModel() {}
+
+    public TagModel(String aName, int aUses) {
+        name = aName;
+        uses = aUses;
+    }
+
+    public long getId() {
+        return _id;
+    }
+
+    @Override
+    public SQLiteTable onTableCreate(SQLiteTable.Builder aBuilder) {
+        return aBuilder.addStringColumn(COL_NAME).primaryKey()
+                .addIntegerColumn(COL_USES)
+                .onConflict(SQLiteDatabase.CONFLICT_ABORT)
+                .build();
+    }
+
+    @Override
+    public void populateContentValues(ContentValues aValues) {
+        aValues.put(COL_NAME, name);
+        aValues.put(COL_USES, uses);
+        super.populateContentValues(aValues);
+    }
+}
@@ -7,7 +7,9 @@ import android.os.Parcelable;
 import android.provider.BaseColumns;
 import android.util.Log;
 
+import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.Iterator;
 import java.util.List;
 
 import io.vokal.db.util.CursorGetter;
@@ -38,9 +40,6 @@ public abstract class AbstractDataModel implements DataModelInterface, BaseColum
         }
     };
 
-    private static final String   WHERE_ID = _ID + "=?";
-    private final        String[] ID_ARG   = new String[1];
-
     protected transient long _id;
 
     protected AbstractDataModel() {}
@@ -74,36 +73,19 @@ public abstract class AbstractDataModel implements DataModelInterface, BaseColum
     @Override
     public void populateContentValues(ContentValues aValues) {}
 
+    /**
+     * Updates the row with this model's {@code _id} or inserts a new one, in a single provider call
+     * and transaction.
+     */
     public Uri save(Context aContext) {
-        ContentValues values = new ContentValues();
-        populateContentValues(values);
-        if (hasId()) values.put(_ID, _id);
-
-        int updated = 0;
-        Uri uri = getContentItemUri();
-        if (uri != null) {
-            updated = aContext.getContentResolver().update(uri, values, null, null);
-        } else {
-            // TODO:
-            //  - test above update
-            // - fall back to SELECT w/ ARG
-        }
-        if (updated == 0 || !hasId()) {
-            uri = aContext.getContentResolver().insert(getContentUri(), values);
-            try {
-                _id = ContentUris.parseId(uri);
-            } catch (Exception e) {
-            }
-        }
-
-        return uri;
+        return DatabaseHelper.save(aContext, null, this);
     }
 
     public boolean delete(Context aContext) {
         boolean result = false;
         if (hasId()) {
-            ID_ARG[0] = Long.toString(_id);
-            result = aContext.getContentResolver().delete(getContentUri(), WHERE_ID, ID_ARG) == 1;
+            // item Uri so only observers of this row and its table are notified
+            result = aContext.getContentResolver().delete(getContentItemUri(), null, null) == 1;
         }
         return result;
     }
@@ -137,6 +119,15 @@ public abstract class AbstractDataModel implements DataModelInterface, BaseColum
         return result;
     }
 
+    /**
+     * Streams models of a single concrete type into the provider without building the whole
+     * batch in memory, see {@link DatabaseHelper#streamInsert}.
+     */
+    public static int streamInsert(Context aContext, Class<? extends AbstractDataModel> aModelClass,
+                                   Iterator<? extends AbstractDataModel> aModels) throws IOException {
+        return DatabaseHelper.streamInsert(aContext, aModelClass, aModels);
+    }
+
     private boolean hasId() {
         return _id > 0;
     }
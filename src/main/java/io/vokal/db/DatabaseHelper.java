@@ -1,15 +1,26 @@
 package io.vokal.db;
 
+import android.annotation.TargetApi;
 import android.content.*;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vokal.db.util.RowStreamWriter;
 
 public final class DatabaseHelper extends SQLiteOpenHelper {
 
@@ -18,13 +29,27 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
     protected static final HashMap<String, Class>                   CLASS_MAP       = new HashMap<>();
     protected static final HashMap<Class, Uri>                      CONTENT_URI_MAP = new HashMap<>();
     protected static final HashMap<Class, SQLiteTable.TableCreator> TABLE_CREATORS  = new HashMap<>();
+    protected static final HashMap<Class, Uri>                      UPSERT_URI_MAP  = new HashMap<>();
+
+    private static final Map<String, SQLiteTable> TABLE_SCHEMAS = new ConcurrentHashMap<String, SQLiteTable>();
 
     private static boolean isOpen;
 
+    private volatile int mSchemaGeneration;
+
+    private volatile TuningProfile mTuningProfile = TuningProfile.DEFAULT;
+
+    private volatile ReadConnectionPool mReadPool;
+
     DatabaseHelper(Context aContext, String aName, int aVersion) {
         super(aContext, aName, null, aVersion);
     }
 
+    DatabaseHelper(Context aContext, String aName, int aVersion, TuningProfile aTuningProfile) {
+        super(aContext, aName, null, aVersion);
+        mTuningProfile = aTuningProfile;
+    }
+
     /*
      * registers a table with authority, uses lowercase class name as table name(s)
      */
@@ -42,8 +67,6 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
      */
     public static void registerModel(Context aContext, Class<?> aModelClass, String aTableName) {
         if (!TABLE_NAMES.contains(aTableName)) {
-            int matcher_index = TABLE_NAMES.size();
-
             TABLE_NAMES.add(aTableName);
             TABLE_MAP.put(aModelClass, aTableName);
             CLASS_MAP.put(aTableName, aModelClass);
@@ -51,9 +74,10 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
             String authority = SimpleContentProvider.getContentAuthority(aContext);
             Uri contentUri = Uri.parse(String.format("content://%s/%s", authority, aTableName));
             CONTENT_URI_MAP.put(aModelClass, contentUri);
+            UPSERT_URI_MAP.put(aModelClass, contentUri.buildUpon()
+                    .appendQueryParameter(SimpleContentProvider.PARAM_UPSERT, "true").build());
 
-            SimpleContentProvider.URI_MATCHER.addURI(authority, aTableName, matcher_index);
-            SimpleContentProvider.URI_ID_MATCHER.addURI(authority, aTableName, matcher_index);
+            SimpleContentProvider.invalidateRoutes();
         }
     }
 
@@ -61,6 +85,13 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
         return CONTENT_URI_MAP.get(aTableName);
     }
 
+    /**
+     * @return a Uri that inserts a row or updates the row with the same {@code _id} or primary key
+     */
+    public static Uri getUpsertUri(Class<?> aTableName) {
+        return UPSERT_URI_MAP.get(aTableName);
+    }
+
     public static Uri getJoinedContentUri(Class<?> aTable1, String aColumn1,
                                           Class<?> aTable2, String aColumn2) {
         return getJoinedContentUri(aTable1, aColumn1, aTable2, aColumn2, null);
@@ -69,39 +100,167 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
     public static Uri getJoinedContentUri(Class<?> aTable1, String aColumn1,
                                           Class<?> aTable2, String aColumn2,
                                           Map<String, String> aProjMap) {
+        JoinSpec spec = new JoinSpec.Builder(aTable1).leftJoin(aTable2, aTable1, aColumn1, aColumn2).build();
+        return getJoinedContentUri(spec, aProjMap);
+    }
+
+    public static Uri getJoinedContentUri(JoinSpec aSpec) {
+        return getJoinedContentUri(aSpec, null);
+    }
+
+    /**
+     * Registers a join of two or more tables.
+     *
+     * @param aProjMap the projection map, or null for every column as {@code table_column} and the
+     *                 spec's aliases
+     * @return the content Uri of the join
+     */
+    public static Uri getJoinedContentUri(JoinSpec aSpec, Map<String, String> aProjMap) {
         String auth = SimpleContentProvider.sContentAuthority;
         if (auth == null) throw new IllegalStateException("Register tables with registerModel(..) methods first.");
-        String tblName1 = TABLE_MAP.get(aTable1);
-        if (tblName1 == null) throw new IllegalStateException("call registerModel() first for table " + aTable1);
-        String tblName2 = TABLE_MAP.get(aTable2);
-        if (tblName2 == null) throw new IllegalStateException("call registerModel() first for table " + aTable2);
 
-        String path = tblName1 + "_" + tblName2;
-        Uri contentUri = Uri.parse(String.format("content://%s/%s", auth, path));
-        int exists = SimpleContentProvider.URI_JOIN_MATCHER.match(contentUri);
-        if (exists != UriMatcher.NO_MATCH) {
-            return contentUri;
+        String base = getRegisteredTableName(aSpec.mBase);
+        String[] tables = new String[aSpec.mJoins.size() + 1];
+        tables[0] = base;
+        StringBuilder path = new StringBuilder(base);
+        StringBuilder sql = new StringBuilder(base);
+        for (int i = 0; i < aSpec.mJoins.size(); i++) {
+            JoinSpec.Clause clause = aSpec.mJoins.get(i);
+            String table = getRegisteredTableName(clause.table);
+            tables[i + 1] = table;
+
+            path.append(clause.type == JoinSpec.INNER ? "_inner_" : "_").append(table);
+            sql.append(clause.type == JoinSpec.INNER ? " INNER JOIN " : " LEFT OUTER JOIN ").append(table).append(" ON (");
+            for (int j = 0; j < clause.on.size(); j++) {
+                JoinSpec.Column on = clause.on.get(j);
+                if (j > 0) sql.append(" AND ");
+                sql.append(String.format("%s.%s = %s.%s", getRegisteredTableName(on.table), on.name,
+                                         table, clause.column.get(j)));
+            }
+            sql.append(")");
         }
 
-        String table = String.format("%s LEFT OUTER JOIN %s ON (%s.%s = %s.%s)",
-                                     tblName1, tblName2,
-                                     tblName1, aColumn1,
-                                     tblName2, aColumn2);
+        Map<String, String> aliases = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, JoinSpec.Column> alias : aSpec.mAliases.entrySet()) {
+            JoinSpec.Column column = alias.getValue();
+            aliases.put(alias.getKey(), String.format("%s.%s AS %s", getRegisteredTableName(column.table),
+                                                      column.name, alias.getKey()));
+        }
 
-        int nextIndex = SimpleContentProvider.JOIN_TABLES.size();
-        SimpleContentProvider.JOIN_TABLES.add(table);
-        SimpleContentProvider.URI_JOIN_MATCHER.addURI(auth, path, nextIndex);
+        String name = aSpec.mName != null ? aSpec.mName : path.toString();
+        Uri contentUri = Uri.parse(String.format("content://%s/%s", auth, name));
+        String table = sql.toString();
 
-        SimpleContentProvider.PROJECTION_MAPS.put(contentUri, aProjMap);
-        SimpleContentProvider.JOIN_DETAILS.add(new SimpleContentProvider.Join(contentUri,
-                                                                              tblName1, aColumn1,
-                                                                              tblName2, aColumn2));
+        synchronized (DatabaseHelper.class) {
+            for (int i = 0; i < SimpleContentProvider.JOIN_DETAILS.size(); i++) {
+                if (SimpleContentProvider.JOIN_DETAILS.get(i).base_uri.equals(contentUri)) {
+                    if (!SimpleContentProvider.JOIN_TABLES.get(i).equals(table)) {
+                        throw new IllegalStateException("a different join is registered as " + name);
+                    }
+                    return contentUri;
+                }
+            }
+            if (TABLE_NAMES.contains(name)) throw new IllegalStateException("a table is registered as " + name);
+
+            SimpleContentProvider.Join join = new SimpleContentProvider.Join(contentUri, tables, aliases);
+
+            // build the default map now from the declared schemas rather than on the first query
+            SimpleContentProvider.JOIN_DEFAULT_MAPS.put(contentUri, buildDefaultJoinMap(join, null));
+            if (aProjMap != null) {
+                SimpleContentProvider.PROJECTION_MAPS.put(contentUri, copyProjectionMap(aProjMap));
+            }
+            SimpleContentProvider.JOIN_TABLES.add(table);
+            SimpleContentProvider.JOIN_DETAILS.add(join);
+            SimpleContentProvider.invalidateRoutes();
+        }
 
         return contentUri;
     }
 
+    private static String getRegisteredTableName(Class<?> aTable) {
+        String name = TABLE_MAP.get(aTable);
+        if (name == null) throw new IllegalStateException("call registerModel() first for table " + aTable);
+        return name;
+    }
+
+    /**
+     * Sets the projection map for a table or join Uri, or restores the default map if null. The map
+     * is copied.
+     */
     public static void setProjectionMap(Uri aContentUri, Map<String, String> aProjectionMap) {
-        SimpleContentProvider.PROJECTION_MAPS.put(aContentUri, aProjectionMap);
+        if (aProjectionMap != null) {
+            SimpleContentProvider.PROJECTION_MAPS.put(aContentUri, copyProjectionMap(aProjectionMap));
+        } else {
+            SimpleContentProvider.PROJECTION_MAPS.remove(aContentUri);
+        }
+        SimpleContentProvider.invalidateRoutes();
+    }
+
+    private static Map<String, String> copyProjectionMap(Map<String, String> aProjectionMap) {
+        return Collections.unmodifiableMap(new HashMap<String, String>(aProjectionMap));
+    }
+
+    /**
+     * @return the number of rows matching the selection, counted with {@code COUNT(*)} by the provider
+     */
+    public static int count(Context aContext, Class<?> aModel, String aSelection, String[] aSelectionArgs) {
+        Uri uri = getAggregateUri(aModel, SimpleContentProvider.PATH_COUNT);
+        return (int) readLong(aContext.getContentResolver().query(uri, null, aSelection, aSelectionArgs, null));
+    }
+
+    /**
+     * @return true if any row matches the selection, stopping at the first one
+     */
+    public static boolean exists(Context aContext, Class<?> aModel, String aSelection, String[] aSelectionArgs) {
+        Uri uri = getAggregateUri(aModel, SimpleContentProvider.PATH_EXISTS);
+        return readLong(aContext.getContentResolver().query(uri, null, aSelection, aSelectionArgs, null)) != 0;
+    }
+
+    /**
+     * @param aFunction one of count, sum, total, min, max or avg
+     * @param aColumn   the aggregated column, or null to count rows
+     * @param aGroupBy  comma separated columns to group by, or null
+     * @return a Uri whose query returns the group by columns and {@link SimpleContentProvider#COLUMN_VALUE}
+     */
+    public static Uri getAggregateUri(Class<?> aModel, String aFunction, String aColumn, String aGroupBy) {
+        Uri.Builder builder = getAggregateUri(aModel, SimpleContentProvider.PATH_AGGREGATE).buildUpon()
+                .appendQueryParameter(SimpleContentProvider.PARAM_FUNCTION, aFunction);
+        if (aColumn != null) builder.appendQueryParameter(SimpleContentProvider.PARAM_COLUMN, aColumn);
+        if (aGroupBy != null) builder.appendQueryParameter(SimpleContentProvider.PARAM_GROUP_BY, aGroupBy);
+        return builder.build();
+    }
+
+    /**
+     * @param aQuery an FTS {@code MATCH} expression, e.g. {@code "coffee*"}
+     * @return a Uri whose query returns the model's rows matching the query against its
+     * {@link SQLiteTable.Builder#fullText(String...)} columns, with {@link SimpleContentProvider#COLUMN_RANK},
+     * best matches first unless sorted otherwise
+     */
+    public static Uri getSearchUri(Class<?> aModel, String aQuery) {
+        return getAggregateUri(aModel, SimpleContentProvider.PATH_SEARCH).buildUpon()
+                .appendQueryParameter(SimpleContentProvider.PARAM_QUERY, aQuery).build();
+    }
+
+    static Uri getAggregateUri(Class<?> aModel, String aPath) {
+        return Uri.withAppendedPath(getRegisteredContentUri(aModel), aPath);
+    }
+
+    static Uri getRegisteredContentUri(Class<?> aModel) {
+        Uri uri = getContentUri(aModel);
+        if (uri == null) throw new IllegalStateException("call registerModel() first for table " + aModel);
+        return uri;
+    }
+
+    /*
+     * reads and closes a single value cursor
+     */
+    static long readLong(Cursor aCursor) {
+        if (aCursor == null) return 0;
+        try {
+            return aCursor.moveToFirst() ? aCursor.getLong(0) : 0;
+        } finally {
+            aCursor.close();
+        }
     }
 
     public static int bulkInsert(Context aContext, List<? extends DataModelInterface> aModelList) {
@@ -123,23 +282,229 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
         return result;
     }
 
+    /**
+     * Streams models into the provider over a pipe instead of building a {@code ContentValues[]},
+     * so the insert is not bounded by the Binder transaction size. Rows are written from a
+     * background thread while the provider commits them as they arrive. If the iterator throws,
+     * the rows of the current chunk are rolled back and the exception is rethrown; chunks already
+     * committed are kept. Before Honeycomb the rows are collected and bulk inserted.
+     *
+     * @return the number of rows inserted
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static int streamInsert(Context aContext, Class<?> aModelClass,
+                                   final Iterator<? extends DataModelInterface> aModels) throws IOException {
+        Uri uri = getContentUri(aModelClass);
+        if (uri == null) throw new IllegalStateException("call registerModel() first for table " + aModelClass);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // ContentResolver.call(Uri, ...) is not available
+            List<ContentValues> rows = new ArrayList<ContentValues>();
+            while (aModels.hasNext()) {
+                ContentValues values = new ContentValues();
+                populateValues(aModels.next(), values);
+                rows.add(values);
+            }
+            return aContext.getContentResolver().bulkInsert(uri, rows.toArray(new ContentValues[rows.size()]));
+        }
+
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        final Throwable[] writeError = new Throwable[1];
+        Thread writer = new Thread("DatabaseHelper.streamInsert") {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                try {
+                    RowStreamWriter rows = new RowStreamWriter(out);
+                    while (aModels.hasNext()) {
+                        values.clear();
+                        populateValues(aModels.next(), values);
+                        rows.write(values);
+                    }
+                    rows.finish();
+                } catch (Throwable e) {
+                    writeError[0] = e;
+                } finally {
+                    // without the end marker the provider sees a truncated stream and rolls back
+                    SimpleContentProvider.closeQuietly(out);
+                }
+            }
+        };
+        writer.start();
+
+        Bundle result = null;
+        RuntimeException callError = null;
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(SimpleContentProvider.EXTRA_PIPE, pipe[0]);
+            result = aContext.getContentResolver().call(uri, SimpleContentProvider.METHOD_STREAM_INSERT,
+                                                        uri.toString(), extras);
+        } catch (RuntimeException e) {
+            callError = e;
+        } finally {
+            SimpleContentProvider.closeQuietly(pipe[0]);
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // a failed insert closes the pipe, so the writer's IOException is only a consequence
+        Throwable error = writeError[0];
+        if (error != null && !(callError != null && error instanceof IOException)) {
+            if (error instanceof IOException) throw (IOException) error;
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            if (error instanceof Error) throw (Error) error;
+            throw new IllegalStateException(error);
+        }
+        if (callError != null) throw callError;
+
+        return result != null ? result.getInt(SimpleContentProvider.EXTRA_COUNT) : 0;
+    }
+
+    static void populateValues(DataModelInterface aModel, ContentValues aValues) {
+        if (aModel instanceof AbstractDataModel && ((AbstractDataModel) aModel)._id > 0) {
+            aValues.put(AbstractDataModel._ID, ((AbstractDataModel) aModel)._id);
+        }
+        aModel.populateContentValues(aValues);
+    }
+
+    /**
+     * Saves models of any registered types in a single provider transaction. Models are grouped by
+     * table, in the order each table first appears, and written with the upsert path of
+     * {@link #save(Context, DataModelInterface)}. Observers get one deduplicated set of
+     * notifications when the transaction ends. Saved {@link AbstractDataModel}s receive their ids.
+     * <p>
+     * All or none of the models are saved only while the provider uses
+     * {@link SQLiteContentProvider.BatchMode#STRICT}, the default. Under {@code AUTO_YIELD} or
+     * {@code CHUNKED} a failure keeps the models written before the last yield or chunk.
+     *
+     * @return the item Uri of each saved model, in iteration order of {@code aModels}
+     */
+    public static Uri[] saveAll(Context aContext, Collection<? extends DataModelInterface> aModels)
+            throws OperationApplicationException {
+        Map<Uri, List<DataModelInterface>> groups = new LinkedHashMap<Uri, List<DataModelInterface>>();
+        for (DataModelInterface model : aModels) {
+            Uri uri = getUpsertUri(model.getClass());
+            if (uri == null) throw new IllegalStateException("call registerModel() first for table " + model.getClass());
+            List<DataModelInterface> group = groups.get(uri);
+            if (group == null) {
+                group = new ArrayList<DataModelInterface>();
+                groups.put(uri, group);
+            }
+            group.add(model);
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(aModels.size());
+        List<DataModelInterface> ordered = new ArrayList<DataModelInterface>(aModels.size());
+        for (Map.Entry<Uri, List<DataModelInterface>> group : groups.entrySet()) {
+            for (DataModelInterface model : group.getValue()) {
+                ContentValues values = new ContentValues();
+                populateValues(model, values);
+                operations.add(ContentProviderOperation.newInsert(group.getKey()).withValues(values).build());
+                ordered.add(model);
+            }
+        }
+        if (operations.isEmpty()) return new Uri[0];
+
+        ContentProviderResult[] results;
+        try {
+            results = aContext.getContentResolver()
+                    .applyBatch(SimpleContentProvider.getContentAuthority(aContext), operations);
+        } catch (RemoteException e) {
+            throw new OperationApplicationException("provider failed to save models", e);
+        }
+
+        Map<DataModelInterface, Uri> saved = new IdentityHashMap<DataModelInterface, Uri>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            DataModelInterface model = ordered.get(i);
+            Uri uri = results[i].uri;
+            saved.put(model, uri);
+            if (uri != null && model instanceof AbstractDataModel) {
+                ((AbstractDataModel) model)._id = ContentUris.parseId(uri);
+            }
+        }
+
+        Uri[] uris = new Uri[aModels.size()];
+        int index = 0;
+        for (DataModelInterface model : aModels) {
+            uris[index++] = saved.get(model);
+        }
+        return uris;
+    }
+
+    /**
+     * Holds back change notifications from the in-process provider until the returned scope is
+     * closed, then notifies every changed Uri once.
+     *
+     * @throws IllegalStateException if the provider does not run in this process
+     */
+    public static Closeable suspendNotifications(Context aContext) {
+        SimpleContentProvider provider = SimpleContentProvider.getLocalProvider(aContext);
+        if (provider == null) throw new IllegalStateException("SimpleContentProvider is not running in this process");
+        return provider.suspendNotifications();
+    }
+
+    /**
+     * Replaces the journal mode and PRAGMA settings of the in-process provider's database. Call before
+     * the database is first used, e.g. in {@code Application.onCreate}, otherwise the profile is
+     * applied when the database is next opened. The read connections close at once, so open cursors
+     * they returned cannot move past their first window of rows.
+     *
+     * @throws IllegalStateException if the provider does not run in this process
+     */
+    public static void setTuningProfile(Context aContext, TuningProfile aProfile) {
+        SimpleContentProvider provider = SimpleContentProvider.getLocalProvider(aContext);
+        if (provider == null) throw new IllegalStateException("SimpleContentProvider is not running in this process");
+        provider.setTuningProfile(aProfile);
+    }
+
+    /**
+     * Updates the row with the model's primary key or inserts it, in a single provider call. A saved
+     * {@link AbstractDataModel} receives its id.
+     *
+     * @return the item Uri of the saved row, or null if nothing was saved
+     */
     public static Uri save(Context aContext, DataModelInterface aModel) {
+        return save(aContext, null, aModel);
+    }
+
+    /*
+     * the save behind this class, AbstractDataModel and LocalDataStore; writes through aStore if
+     * given, otherwise through the resolver. An AbstractDataModel gets its row ID and is mapped
+     * again in its identity map, since the write evicts the row
+     */
+    static Uri save(Context aContext, @Nullable LocalDataStore aStore, DataModelInterface aModel) {
+        Uri upsertUri = getUpsertUri(aModel.getClass());
+        if (upsertUri == null) throw new IllegalStateException("call registerModel() first for table " + aModel.getClass());
+
         ContentValues values = new ContentValues();
-        aModel.populateContentValues(values);
+        populateValues(aModel, values);
 
-        Uri uri = Uri.EMPTY;
+        AbstractDataModel model = aModel instanceof AbstractDataModel ? (AbstractDataModel) aModel : null;
+        IdentityMap identityMap = model != null && model._id > 0 ? IdentityMap.forClass(aModel.getClass()) : null;
+        Object signature = identityMap != null ? identityMap.signatureOf(model._id, model) : null;
 
-        Uri content = getContentUri(aModel.getClass());
-        int updated = aContext.getContentResolver().update(content, values, null, null);
-        if (updated == 0) {
-            uri = aContext.getContentResolver().insert(content, values);
+        Uri uri = aStore != null ? aStore.insert(upsertUri, values)
+                                 : aContext.getContentResolver().insert(upsertUri, values);
+        if (uri != null && model != null) {
+            try {
+                model._id = ContentUris.parseId(uri);
+            } catch (Exception e) {
+            }
+            if (signature != null) {
+                identityMap.put(model._id, signature, model, identityMap.getGeneration());
+            }
         }
-
         return uri;
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        mSchemaGeneration++;
         for (Map.Entry<Class, String> entry : TABLE_MAP.entrySet()) {
             SQLiteTable.TableCreator creator = getTableCreator(entry.getKey());
             if (creator != null) {
@@ -152,6 +517,11 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
                             db.execSQL(indexSQL);
                         }
                     }
+                    if (table.getFullTextSQL() != null) {
+                        for (String ftsSQL : table.getFullTextSQL()) {
+                            db.execSQL(ftsSQL);
+                        }
+                    }
                     if (table.getSeedValues() != null) {
                         for (ContentValues values : table.getSeedValues()) {
                             db.insert(table.getTableName(), table.getNullHack(), values);
@@ -164,6 +534,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        mSchemaGeneration++;
         Cursor tables = db.query("sqlite_master", null, "type='table'", null, null, null, null);
         ArrayList<String> tableNames = new ArrayList<String>();
         if (tables != null) {
@@ -211,6 +582,11 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
                         db.execSQL(indexSQL);
                     }
                 }
+                if (table.getFullTextSQL() != null) {
+                    for (String ftsSQL : table.getFullTextSQL()) {
+                        db.execSQL(ftsSQL);
+                    }
+                }
                 if (table.getSeedValues() != null) {
                     for (ContentValues values : table.getSeedValues()) {
                         db.insert(table.getTableName(), table.getNullHack(), values);
@@ -221,10 +597,85 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        mTuningProfile.configure(db);
+    }
+
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // onConfigure is not called before API 16
+            mTuningProfile.configure(db);
+        }
+        mTuningProfile.apply(db);
+        if (hasFullTextTables()) {
+            // rows replaced by INSERT OR REPLACE must fire the delete triggers of the full-text index
+            db.execSQL("PRAGMA recursive_triggers = ON");
+        }
         isOpen = true;
+        SimpleContentProvider.refreshJoinProjections(db);
+    }
+
+    /*
+     * takes effect the next time the database is opened
+     */
+    synchronized void setTuningProfile(TuningProfile aProfile) {
+        mTuningProfile = aProfile;
+        closeReadPool();
+    }
+
+    /**
+     * @return the pool of read-only connections, or null if the tuning profile does not enable
+     * write-ahead logging and read connections
+     */
+    @Nullable ReadConnectionPool getReadPool() {
+        // called for every query, so only take the lock to open the pool
+        ReadConnectionPool pool = mReadPool;
+        if (pool != null || !usesReadPool(mTuningProfile)) return pool;
+        return openReadPool();
+    }
+
+    private boolean usesReadPool(TuningProfile aTuning) {
+        return aTuning.getReadConnections() > 0 && aTuning.isWriteAheadLogging()
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && getDatabaseName() != null;
+    }
+
+    private synchronized @Nullable ReadConnectionPool openReadPool() {
+        if (mReadPool == null) {
+            TuningProfile tuning = mTuningProfile;
+            if (!usesReadPool(tuning)) return null;
+            // create or upgrade the schema before any reader opens the file
+            SQLiteDatabase db = getWritableDatabase();
+            mReadPool = new ReadConnectionPool(db.getPath(), tuning.getReadConnections(), tuning);
+        }
+        return mReadPool;
+    }
+
+    private void closeReadPool() {
+        if (mReadPool != null) {
+            mReadPool.close();
+            mReadPool = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeReadPool();
+        super.close();
+    }
+
+    TuningProfile getTuningProfile() {
+        return mTuningProfile;
+    }
+
+    /*
+     * incremented whenever tables are created or upgraded so compiled statements can be discarded
+     */
+    int getSchemaGeneration() {
+        return mSchemaGeneration;
     }
 
     static @Nullable
@@ -267,6 +718,32 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
         return creator;
     }
 
+    /**
+     * @return the schema declared by the table's creator, or null if it has none
+     */
+    static @Nullable SQLiteTable getTableSchema(String aTableName) {
+        SQLiteTable table = TABLE_SCHEMAS.get(aTableName);
+        if (table == null) {
+            Class tableClass = CLASS_MAP.get(aTableName);
+            SQLiteTable.TableCreator creator = tableClass != null ? getTableCreator(tableClass) : null;
+            if (creator != null) {
+                table = creator.buildTableSchema(new SQLiteTable.Builder(aTableName));
+                if (table != null) {
+                    TABLE_SCHEMAS.put(aTableName, table);
+                }
+            }
+        }
+        return table;
+    }
+
+    private static boolean hasFullTextTables() {
+        for (String table : CLASS_MAP.keySet()) {
+            SQLiteTable schema = getTableSchema(table);
+            if (schema != null && schema.getFullTextColumns() != null) return true;
+        }
+        return false;
+    }
+
     static List<String> getTableColumns(SQLiteDatabase aDatabase, String aTableName) {
         List<String> columns = new ArrayList<String>();
 
@@ -279,16 +756,10 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
             }
             c.close();
         } else {
-            Class tableClass = CLASS_MAP.get(aTableName);
-            if (tableClass != null) {
-                SQLiteTable.TableCreator creator = getTableCreator(tableClass);
-                if (creator != null) {
-                    SQLiteTable create = creator.buildTableSchema(new SQLiteTable.Builder(aTableName));
-                    if (create != null) {
-                        for (SQLiteTable.Column col : create.getColumns()) {
-                            columns.add(col.name);
-                        }
-                    }
+            SQLiteTable create = getTableSchema(aTableName);
+            if (create != null) {
+                for (SQLiteTable.Column col : create.getColumns()) {
+                    columns.add(col.name);
                 }
             }
         }
@@ -299,22 +770,17 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
     static Map<String,String> buildDefaultJoinMap(SimpleContentProvider.Join aJoin, SQLiteDatabase aDb) {
         Map<String, String> projection = new HashMap<String, String>();
 
-        List<String> columns1 = getTableColumns(aDb, aJoin.table_1);
-        List<String> columns2 = getTableColumns(aDb, aJoin.table_2);
-
-        projection.put("_id", aJoin.table_1.concat("._id as _id"));
-
-        for (String col : columns1) {
-            projection.put(String.format("%s_%s", aJoin.table_1, col),
-                           String.format("%s.%s AS %s_%s", aJoin.table_1, col, aJoin.table_1, col));
+        projection.put("_id", aJoin.tables[0].concat("._id as _id"));
 
+        for (String table : aJoin.tables) {
+            for (String col : getTableColumns(aDb, table)) {
+                projection.put(String.format("%s_%s", table, col),
+                               String.format("%s.%s AS %s_%s", table, col, table, col));
+            }
         }
-        for (String col : columns2) {
-            projection.put(String.format("%s_%s", aJoin.table_2, col),
-                        String.format("%s.%s AS %s_%s", aJoin.table_2, col, aJoin.table_2, col));
-        }
+        projection.putAll(aJoin.aliases);
 
-        return projection;
+        return Collections.unmodifiableMap(projection);
     }
 
     public static void wipeDatabase(Context aContext) {
@@ -0,0 +1,189 @@
+package io.vokal.db;
+
+import android.net.Uri;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional identity map of one model class, keyed by {@code _id}. While enabled, every
+ * {@link io.vokal.db.util.ObjectCursor} and {@link io.vokal.db.util.PagedObjectList} of the
+ * table's Uri maps a row to the model already created for it, as long as that model is still
+ * referenced, instead of creating a duplicate. Models are only shared between results with the
+ * same columns and {@link io.vokal.db.util.CursorCreator}.
+ * <p>
+ * When a transaction commits, the provider evicts the changed rows: the row of an item Uri, or
+ * the whole table for a table Uri. Results read before a change do not use the map, so they never
+ * mix models of different versions of the table. Shared models should be treated as read-only
+ * until saved. Requires the provider to run in the app's process.
+ */
+public final class IdentityMap {
+
+    private static final ConcurrentHashMap<String, IdentityMap> MAPS = new ConcurrentHashMap<String, IdentityMap>();
+
+    private final Map<Long, Entry>       mEntries = new HashMap<Long, Entry>();
+    private final ReferenceQueue<Object> mCleared = new ReferenceQueue<Object>();
+
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    private IdentityMap() {}
+
+    /**
+     * Starts sharing the models of a registered class.
+     */
+    public static void enable(Class<?> aModelClass) {
+        String table = DatabaseHelper.TABLE_MAP.get(aModelClass);
+        if (table == null) throw new IllegalArgumentException(aModelClass + " is not registered");
+        MAPS.putIfAbsent(table, new IdentityMap());
+    }
+
+    public static void disable(Class<?> aModelClass) {
+        String table = DatabaseHelper.TABLE_MAP.get(aModelClass);
+        if (table != null) {
+            IdentityMap map = MAPS.remove(table);
+            if (map != null) map.clear();
+        }
+    }
+
+    /**
+     * @return the map of the model class, or null if it is not enabled
+     */
+    public static IdentityMap forClass(Class<?> aModelClass) {
+        String table = DatabaseHelper.TABLE_MAP.get(aModelClass);
+        return table != null ? MAPS.get(table) : null;
+    }
+
+    /**
+     * @return the map of the table a table or item Uri points to, or null if it is not enabled
+     */
+    public static IdentityMap forUri(Uri aUri) {
+        if (MAPS.isEmpty()) return null;
+        List<String> segments = aUri.getPathSegments();
+        return segments.isEmpty() ? null : MAPS.get(segments.get(0));
+    }
+
+    /**
+     * @return the key of models created by {@code aFactory} from rows with {@code aColumns}
+     */
+    public static Object signature(Object aFactory, String[] aColumns) {
+        List<Object> signature = new ArrayList<Object>(aColumns.length + 1);
+        signature.add(aFactory.getClass());
+        Collections.addAll(signature, aColumns);
+        return signature;
+    }
+
+    /**
+     * Evicts the rows or tables of the Uris changed by a committed transaction.
+     */
+    static void onChange(Uri[] aUris) {
+        if (MAPS.isEmpty()) return;
+        for (Uri uri : aUris) {
+            List<String> segments = uri.getPathSegments();
+            IdentityMap map = segments.isEmpty() ? null : MAPS.get(segments.get(0));
+            if (map == null) continue;
+
+            long id = segments.size() == 2 ? parseId(segments.get(1)) : -1;
+            if (id > 0) {
+                map.evict(id);
+            } else {
+                map.clear();
+            }
+        }
+    }
+
+    private static long parseId(String aSegment) {
+        try {
+            return Long.parseLong(aSegment);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the value to pass to {@link #get} and {@link #put}, read before the query runs
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return the model of the row, or null if there is none or the table changed since
+     * {@code aGeneration}
+     */
+    public synchronized Object get(long aId, Object aSignature, long aGeneration) {
+        if (aGeneration != mGeneration) return null;
+
+        Entry entry = mEntries.get(aId);
+        Object model = entry != null && entry.signature.equals(aSignature) ? entry.get() : null;
+        if (model != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return model;
+    }
+
+    /**
+     * Maps the row to {@code aModel}, unless the table changed since {@code aGeneration}.
+     */
+    public synchronized void put(long aId, Object aSignature, Object aModel, long aGeneration) {
+        if (aGeneration != mGeneration) return;
+        purge();
+        mEntries.put(aId, new Entry(aId, aSignature, aModel, mCleared));
+    }
+
+    /**
+     * @return the signature the row is mapped under if it is mapped to {@code aModel}, or null
+     */
+    synchronized Object signatureOf(long aId, Object aModel) {
+        Entry entry = mEntries.get(aId);
+        return entry != null && entry.get() == aModel ? entry.signature : null;
+    }
+
+    synchronized void evict(long aId) {
+        mGeneration++;
+        mEntries.remove(aId);
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        purge();
+        return mEntries.size();
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    private void purge() {
+        Entry cleared;
+        while ((cleared = (Entry) mCleared.poll()) != null) {
+            if (mEntries.get(cleared.id) == cleared) {
+                mEntries.remove(cleared.id);
+            }
+        }
+    }
+
+    private static final class Entry extends WeakReference<Object> {
+        final long   id;
+        final Object signature;
+
+        Entry(long aId, Object aSignature, Object aModel, ReferenceQueue<Object> aQueue) {
+            super(aModel, aQueue);
+            id = aId;
+            signature = aSignature;
+        }
+    }
+}
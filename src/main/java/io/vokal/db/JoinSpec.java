@@ -0,0 +1,155 @@
+package io.vokal.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A join of two or more registered tables, passed to {@link DatabaseHelper#getJoinedContentUri(JoinSpec)}.
+ * Each table is joined with {@code INNER JOIN} or {@code LEFT OUTER JOIN} on one or more column
+ * pairs with any table before it:
+ * <pre>
+ * new JoinSpec.Builder(Transaction.class)
+ *         .innerJoin(User.class, Transaction.class, Transaction.COL_USER_ID, User.COL_ID)
+ *         .leftJoin(Rate.class, Transaction.class, Transaction.COL_CURRENCY, Rate.COL_CURRENCY)
+ *         .on(Transaction.class, Transaction.COL_DATE, Rate.COL_DATE)
+ *         .alias("user_name", User.class, User.COL_NAME)
+ *         .build();
+ * </pre>
+ * Each table can appear once.
+ */
+public final class JoinSpec {
+
+    public static final int INNER = 0;
+    public static final int LEFT  = 1;
+
+    final Class<?>            mBase;
+    final List<Clause>        mJoins;
+    final Map<String, Column> mAliases;
+    final String              mName;
+
+    private JoinSpec(Builder aBuilder) {
+        mBase = aBuilder.mBase;
+        // the builder keeps adding to its clauses, so copy them
+        List<Clause> joins = new ArrayList<Clause>(aBuilder.mJoins.size());
+        for (Clause clause : aBuilder.mJoins) {
+            joins.add(new Clause(clause));
+        }
+        mJoins = Collections.unmodifiableList(joins);
+        mAliases = Collections.unmodifiableMap(new LinkedHashMap<String, Column>(aBuilder.mAliases));
+        mName = aBuilder.mName;
+    }
+
+    static final class Clause {
+        final int          type;
+        final Class<?>     table;
+        final List<Column> on;
+        final List<String> column;
+
+        Clause(int aType, Class<?> aTable) {
+            type = aType;
+            table = aTable;
+            on = new ArrayList<Column>();
+            column = new ArrayList<String>();
+        }
+
+        /**
+         * Read-only copy of {@code aSource}.
+         */
+        Clause(Clause aSource) {
+            type = aSource.type;
+            table = aSource.table;
+            on = Collections.unmodifiableList(new ArrayList<Column>(aSource.on));
+            column = Collections.unmodifiableList(new ArrayList<String>(aSource.column));
+        }
+    }
+
+    static final class Column {
+        final Class<?> table;
+        final String   name;
+
+        Column(Class<?> aTable, String aName) {
+            table = aTable;
+            name = aName;
+        }
+    }
+
+    public static final class Builder {
+        private final Class<?>            mBase;
+        private final List<Clause>        mJoins   = new ArrayList<Clause>();
+        private final Map<String, Column> mAliases = new LinkedHashMap<String, Column>();
+        private final List<Class<?>>      mTables  = new ArrayList<Class<?>>();
+        private       String              mName;
+
+        public Builder(Class<?> aTable) {
+            if (aTable == null) throw new IllegalArgumentException("table cannot be null");
+            mBase = aTable;
+            mTables.add(aTable);
+        }
+
+        /**
+         * Joins {@code aTable} where {@code aOnTable.aOnColumn = aTable.aColumn}, keeping only rows
+         * with a match.
+         */
+        public Builder innerJoin(Class<?> aTable, Class<?> aOnTable, String aOnColumn, String aColumn) {
+            return join(INNER, aTable, aOnTable, aOnColumn, aColumn);
+        }
+
+        /**
+         * Joins {@code aTable} where {@code aOnTable.aOnColumn = aTable.aColumn}, with null columns
+         * for rows without a match.
+         */
+        public Builder leftJoin(Class<?> aTable, Class<?> aOnTable, String aOnColumn, String aColumn) {
+            return join(LEFT, aTable, aOnTable, aOnColumn, aColumn);
+        }
+
+        public Builder join(int aType, Class<?> aTable, Class<?> aOnTable, String aOnColumn, String aColumn) {
+            if (aType != INNER && aType != LEFT) throw new IllegalArgumentException("unknown join type " + aType);
+            if (mTables.contains(aTable)) throw new IllegalArgumentException(aTable + " is already joined");
+
+            mJoins.add(new Clause(aType, aTable));
+            mTables.add(aTable);
+            return on(aOnTable, aOnColumn, aColumn);
+        }
+
+        /**
+         * Adds a column pair to the last join, for composite keys.
+         */
+        public Builder on(Class<?> aOnTable, String aOnColumn, String aColumn) {
+            if (mJoins.isEmpty()) throw new IllegalStateException("on() must follow a join");
+
+            Clause last = mJoins.get(mJoins.size() - 1);
+            if (aOnTable == last.table || mTables.indexOf(aOnTable) == -1) {
+                throw new IllegalArgumentException(aOnTable + " must be joined before " + last.table);
+            }
+            last.on.add(new Column(aOnTable, aOnColumn));
+            last.column.add(aColumn);
+            return this;
+        }
+
+        /**
+         * Adds {@code aTable.aColumn AS aAlias} to the default projection map.
+         */
+        public Builder alias(String aAlias, Class<?> aTable, String aColumn) {
+            if (!mTables.contains(aTable)) throw new IllegalArgumentException(aTable + " is not part of the join");
+            mAliases.put(aAlias, new Column(aTable, aColumn));
+            return this;
+        }
+
+        /**
+         * Sets the last path segment of the joined content Uri. Defaults to the table names joined
+         * by {@code _}, or {@code _inner_} before inner joined tables.
+         */
+        public Builder name(String aName) {
+            mName = aName;
+            return this;
+        }
+
+        public JoinSpec build() {
+            if (mJoins.isEmpty()) throw new IllegalStateException("join at least one table");
+            return new JoinSpec(this);
+        }
+    }
+}
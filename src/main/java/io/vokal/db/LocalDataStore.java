@@ -0,0 +1,147 @@
+package io.vokal.db;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.List;
+
+/**
+ * Same-process access to the {@link SimpleContentProvider}. Calls go straight to the provider's
+ * transactional methods instead of through {@link ContentResolver}, skipping the provider lookup,
+ * permission checks and cursor wrapping. Writes run the same code as through the resolver, so
+ * observers get the same notifications.
+ * <p>
+ * Create one instance and keep it, e.g. in your {@code Application}. If the provider does not run in
+ * this process, or before API 11, every call goes through the resolver instead.
+ */
+public class LocalDataStore {
+
+    private final Context               mContext;
+    private final SimpleContentProvider mProvider;
+    private final String                mAuthority;
+
+    public LocalDataStore(Context aContext) {
+        mContext = aContext;
+        mAuthority = SimpleContentProvider.getContentAuthority(aContext);
+        mProvider = SimpleContentProvider.getLocalProvider(aContext);
+    }
+
+    /**
+     * @return true if calls bypass the {@link ContentResolver}
+     */
+    public boolean isLocal() {
+        return mProvider != null;
+    }
+
+    /**
+     * @see DatabaseHelper#save(Context, DataModelInterface)
+     */
+    public Uri save(DataModelInterface aModel) {
+        return DatabaseHelper.save(mContext, this, aModel);
+    }
+
+    /**
+     * @see AbstractDataModel#delete(Context)
+     */
+    public boolean delete(AbstractDataModel aModel) {
+        Uri uri = aModel.getContentItemUri();
+        return uri != null && delete(uri, null, null) == 1;
+    }
+
+    /**
+     * @see DatabaseHelper#bulkInsert(Context, List)
+     */
+    public int bulkInsert(List<? extends DataModelInterface> aModels) {
+        if (aModels.isEmpty()) return 0;
+
+        Uri uri = DatabaseHelper.getRegisteredContentUri(aModels.get(0).getClass());
+
+        ContentValues[] values = new ContentValues[aModels.size()];
+        for (int i = 0; i < values.length; i++) {
+            DataModelInterface model = aModels.get(i);
+            if (!uri.equals(DatabaseHelper.getContentUri(model.getClass()))) {
+                throw new IllegalStateException("models must all be of the same concrete type to bulk insert");
+            }
+            values[i] = new ContentValues();
+            model.populateContentValues(values[i]);
+        }
+        return bulkInsert(uri, values);
+    }
+
+    /**
+     * @see DatabaseHelper#wipeDatabase(Context)
+     */
+    public void wipeDatabase() {
+        for (Uri uri : DatabaseHelper.CONTENT_URI_MAP.values()) {
+            delete(uri, null, null);
+        }
+    }
+
+    /**
+     * @see DatabaseHelper#count(Context, Class, String, String[])
+     */
+    public int count(Class<?> aModel, String aSelection, String[] aSelectionArgs) {
+        Uri uri = DatabaseHelper.getAggregateUri(aModel, SimpleContentProvider.PATH_COUNT);
+        return (int) DatabaseHelper.readLong(query(uri, null, aSelection, aSelectionArgs, null));
+    }
+
+    /**
+     * @see DatabaseHelper#exists(Context, Class, String, String[])
+     */
+    public boolean exists(Class<?> aModel, String aSelection, String[] aSelectionArgs) {
+        Uri uri = DatabaseHelper.getAggregateUri(aModel, SimpleContentProvider.PATH_EXISTS);
+        return DatabaseHelper.readLong(query(uri, null, aSelection, aSelectionArgs, null)) != 0;
+    }
+
+    public Cursor query(Class<?> aModel, String[] aProjection, String aSelection, String[] aSelectionArgs,
+                        String aSortOrder) {
+        return query(DatabaseHelper.getRegisteredContentUri(aModel), aProjection, aSelection, aSelectionArgs,
+                     aSortOrder);
+    }
+
+    /**
+     * Queries other providers' Uris through the resolver.
+     */
+    public Cursor query(Uri aUri, String[] aProjection, String aSelection, String[] aSelectionArgs,
+                        String aSortOrder) {
+        if (isLocal(aUri)) {
+            return mProvider.query(aUri, aProjection, aSelection, aSelectionArgs, aSortOrder);
+        }
+        return mContext.getContentResolver().query(aUri, aProjection, aSelection, aSelectionArgs, aSortOrder);
+    }
+
+    public Uri insert(Uri aUri, ContentValues aValues) {
+        if (isLocal(aUri)) {
+            return mProvider.insert(aUri, aValues);
+        }
+        return mContext.getContentResolver().insert(aUri, aValues);
+    }
+
+    public int bulkInsert(Uri aUri, ContentValues[] aValues) {
+        if (isLocal(aUri)) {
+            return mProvider.bulkInsert(aUri, aValues);
+        }
+        return mContext.getContentResolver().bulkInsert(aUri, aValues);
+    }
+
+    public int update(Uri aUri, ContentValues aValues, String aSelection, String[] aSelectionArgs) {
+        if (isLocal(aUri)) {
+            return mProvider.update(aUri, aValues, aSelection, aSelectionArgs);
+        }
+        return mContext.getContentResolver().update(aUri, aValues, aSelection, aSelectionArgs);
+    }
+
+    public int delete(Uri aUri, String aSelection, String[] aSelectionArgs) {
+        if (isLocal(aUri)) {
+            return mProvider.delete(aUri, aSelection, aSelectionArgs);
+        }
+        return mContext.getContentResolver().delete(aUri, aSelection, aSelectionArgs);
+    }
+
+    private boolean isLocal(Uri aUri) {
+        return mProvider != null && mAuthority.equals(aUri.getAuthority());
+    }
+}
@@ -0,0 +1,212 @@
+package io.vokal.db;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects change notification Uris from consecutive transactions and dispatches each distinct Uri
+ * once. Dispatch happens after {@code window} milliseconds without new changes, but never later
+ * than {@code maxLatency} milliseconds after the oldest pending change. A window of 0 dispatches
+ * immediately. Notifications are held back while a {@link Scope} is open.
+ */
+class NotificationCoalescer {
+
+    interface Dispatcher {
+        void dispatch(Collection<Uri> aUris);
+    }
+
+    /**
+     * More pending item Uris than this for one table are replaced by the table Uri.
+     */
+    static final int MAX_ITEM_URIS_PER_TABLE = 32;
+
+    private final Dispatcher    mDispatcher;
+    private final Set<Uri>      mPending = new LinkedHashSet<Uri>();
+
+    private long mWindow;
+    private long mMaxLatency;
+    private long mFirstPendingAt;
+    private int  mSuspendCount;
+
+    private ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?>       mScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NotificationCoalescer(Dispatcher aDispatcher) {
+        mDispatcher = aDispatcher;
+    }
+
+    synchronized void setDebounce(long aWindowMillis, long aMaxLatencyMillis) {
+        if (aWindowMillis < 0 || aMaxLatencyMillis < 0) {
+            throw new IllegalArgumentException("notification debounce cannot be negative");
+        }
+        mWindow = aWindowMillis;
+        mMaxLatency = Math.max(aWindowMillis, aMaxLatencyMillis);
+    }
+
+    synchronized long getWindow() {
+        return mWindow;
+    }
+
+    synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    void enqueue(Uri[] aUris) {
+        if (aUris == null || aUris.length == 0) return;
+
+        boolean flushNow;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                mFirstPendingAt = SystemClock.uptimeMillis();
+            }
+            Collections.addAll(mPending, aUris);
+            mPending.remove(null);
+
+            if (mSuspendCount > 0) return;
+
+            flushNow = mWindow == 0;
+            if (!flushNow) {
+                long now = SystemClock.uptimeMillis();
+                long delay = Math.min(mWindow, mFirstPendingAt + mMaxLatency - now);
+                schedule(Math.max(0, delay));
+            }
+        }
+
+        if (flushNow) flush();
+    }
+
+    /**
+     * Dispatches all pending Uris now.
+     */
+    void flush() {
+        Uri[] uris;
+        synchronized (this) {
+            if (mScheduled != null) {
+                mScheduled.cancel(false);
+                mScheduled = null;
+            }
+            if (mPending.isEmpty()) return;
+            uris = mPending.toArray(new Uri[mPending.size()]);
+            mPending.clear();
+        }
+        mDispatcher.dispatch(collapse(uris));
+    }
+
+    /**
+     * Drops item Uris ({@code .../table/<id>}) whose table Uri is also pending and replaces large
+     * groups of item Uris with their table Uri. Observers of the table also see item changes.
+     */
+    static Collection<Uri> collapse(Uri[] aUris) {
+        Map<Uri, List<Uri>> items = null;
+        Set<Uri> result = new LinkedHashSet<Uri>(aUris.length);
+        for (Uri uri : aUris) {
+            Uri parent = getTableUri(uri);
+            if (parent == null) {
+                result.add(uri);
+            } else {
+                if (items == null) items = new LinkedHashMap<Uri, List<Uri>>();
+                List<Uri> group = items.get(parent);
+                if (group == null) {
+                    group = new ArrayList<Uri>();
+                    items.put(parent, group);
+                }
+                group.add(uri);
+            }
+        }
+
+        if (items != null) {
+            for (Map.Entry<Uri, List<Uri>> entry : items.entrySet()) {
+                if (result.contains(entry.getKey())) continue;
+                if (entry.getValue().size() > MAX_ITEM_URIS_PER_TABLE) {
+                    result.add(entry.getKey());
+                } else {
+                    result.addAll(entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the table Uri if {@code aUri} addresses a single row, otherwise null
+     */
+    static Uri getTableUri(Uri aUri) {
+        List<String> segments = aUri.getPathSegments();
+        if (segments.size() != 2) return null;
+        String id = segments.get(1);
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) return null;
+        }
+        return aUri.buildUpon().path(segments.get(0)).build();
+    }
+
+    Scope suspend() {
+        synchronized (this) {
+            mSuspendCount++;
+        }
+        return new Scope();
+    }
+
+    private void resume() {
+        synchronized (this) {
+            if (--mSuspendCount > 0) return;
+        }
+        flush();
+    }
+
+    void shutdown() {
+        flush();
+        synchronized (this) {
+            if (mScheduler != null) {
+                mScheduler.shutdownNow();
+                mScheduler = null;
+            }
+        }
+    }
+
+    private void schedule(long aDelay) {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable aRunnable) {
+                    Thread thread = new Thread(aRunnable, "NotificationCoalescer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (mScheduled != null) {
+            mScheduled.cancel(false);
+        }
+        mScheduled = mScheduler.schedule(mFlush, aDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Holds back notifications until closed, then sends every Uri changed inside the scope once.
+     * Scopes may be nested; notifications are sent when the outermost scope closes.
+     */
+    class Scope implements Closeable {
+
+        private boolean mClosed;
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+            }
+            resume();
+        }
+    }
+}
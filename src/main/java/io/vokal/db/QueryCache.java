@@ -0,0 +1,109 @@
+package io.vokal.db;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the SQL text {@link SimpleContentProvider#query} builds for a route,
+ * projection, selection, sort order and whether it is limited. Repeated loader queries skip
+ * {@code SQLiteQueryBuilder}, and because the SQL text is identical every time, SQLite's
+ * per-connection statement cache skips compiling it again as well. Routes are replaced when
+ * projection maps change, so stale entries are never hit and age out.
+ */
+class QueryCache {
+
+    static final int DEFAULT_MAX_SIZE = 64;
+
+    private final LinkedHashMap<Key, String> mQueries;
+    private final int                        mMaxSize;
+
+    private long mHits;
+    private long mMisses;
+
+    QueryCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    QueryCache(int aMaxSize) {
+        mMaxSize = aMaxSize;
+        mQueries = new LinkedHashMap<Key, String>(aMaxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> aEldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    synchronized String get(Key aKey) {
+        String sql = mQueries.get(aKey);
+        if (sql != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return sql;
+    }
+
+    synchronized void put(Key aKey, String aSQL) {
+        mQueries.put(aKey, aSQL);
+    }
+
+    synchronized void clear() {
+        mQueries.clear();
+    }
+
+    synchronized int size() {
+        return mQueries.size();
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    static final class Key {
+        private final Object   mRoute;
+        private final String[] mProjection;
+        private final String   mSelection;
+        private final String   mSortOrder;
+        private final boolean  mLimited;
+        private final int      mHash;
+
+        Key(Object aRoute, String[] aProjection, String aSelection, String aSortOrder, boolean aLimited) {
+            mRoute = aRoute;
+            mProjection = aProjection;
+            mSelection = aSelection;
+            mSortOrder = aSortOrder;
+            mLimited = aLimited;
+
+            int hash = System.identityHashCode(aRoute);
+            hash = 31 * hash + Arrays.hashCode(aProjection);
+            hash = 31 * hash + (aSelection != null ? aSelection.hashCode() : 0);
+            hash = 31 * hash + (aSortOrder != null ? aSortOrder.hashCode() : 0);
+            mHash = 31 * hash + (aLimited ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+            return mRoute == other.mRoute
+                    && mHash == other.mHash
+                    && mLimited == other.mLimited
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && (mSelection != null ? mSelection.equals(other.mSelection) : other.mSelection == null)
+                    && (mSortOrder != null ? mSortOrder.equals(other.mSortOrder) : other.mSortOrder == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+}
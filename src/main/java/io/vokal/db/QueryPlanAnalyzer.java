@@ -0,0 +1,308 @@
+package io.vokal.db;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Debug aid that runs {@code EXPLAIN QUERY PLAN} once for each distinct query the provider builds
+ * and flags full table scans and temporary B-tree sorts. It counts how often each query runs and
+ * suggests {@link SQLiteTable.Builder#index(String...)} declarations for the flagged queries of
+ * each model: columns compared with {@code =}, {@code IN} or {@code IS}, then the
+ * {@code ORDER BY} columns, or else the first range-compared column.
+ * <p>
+ * Enable with {@link SimpleContentProvider#setQueryPlanAnalyzer(QueryPlanAnalyzer)} or the
+ * {@code analyze_queries} provider metadata. Each new query shape costs an extra statement, so
+ * leave it off in release builds.
+ */
+public class QueryPlanAnalyzer {
+
+    private static final String TAG = QueryPlanAnalyzer.class.getSimpleName();
+
+    private static final Pattern COMPARISON = Pattern.compile(
+            "([A-Za-z_][\\w.]*)\\s*(==|=|<=|>=|<|>|\\bIN\\b|\\bIS\\b(?!\\s+NOT)|\\bBETWEEN\\b|\\bLIKE\\b|\\bGLOB\\b)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Set<String> KEYWORDS = new HashSet<String>(
+            Arrays.asList("AND", "OR", "NOT", "WHERE", "ON", "CASE", "WHEN", "THEN", "ELSE"));
+
+    private final Map<String, QueryShape> mShapes = new LinkedHashMap<String, QueryShape>();
+
+    /**
+     * Records one execution of {@code aSQL}, and explains it if it was not seen before.
+     *
+     * @param aTable the queried table, or null for joins
+     */
+    void onQuery(SQLiteDatabase aDb, String aTable, String aSQL, String[] aArgs, String aSelection,
+                 String aSortOrder) {
+        synchronized (this) {
+            QueryShape shape = mShapes.get(aSQL);
+            if (shape != null) {
+                shape.mCount++;
+                return;
+            }
+        }
+
+        List<String> plan = explain(aDb, aSQL, aArgs);
+        QueryShape shape = new QueryShape(aTable, aSQL, plan);
+        if (shape.isFlagged() && aTable != null) {
+            shape.mSuggestedIndex = suggestIndex(aTable, aSelection, aSortOrder);
+        }
+
+        synchronized (this) {
+            QueryShape seen = mShapes.get(aSQL);
+            if (seen != null) {
+                seen.mCount++;
+                return;
+            }
+            mShapes.put(aSQL, shape);
+        }
+
+        if (shape.isFlagged()) {
+            Log.w(TAG, String.format("%s%s: %s%s", shape.isFullScan() ? "full table scan" : "",
+                                     shape.isFullScan() && shape.usesTempSort() ? ", " : "",
+                                     shape.usesTempSort() ? "temp b-tree sort" : "", aSQL)
+                    + (shape.mSuggestedIndex != null ? " -> " + shape.getIndexDeclaration() : ""));
+        }
+    }
+
+    /**
+     * @return every distinct query seen, in the order first run
+     */
+    public synchronized List<QueryShape> getShapes() {
+        List<QueryShape> shapes = new ArrayList<QueryShape>(mShapes.size());
+        for (QueryShape shape : mShapes.values()) {
+            shapes.add(shape.copy());
+        }
+        return shapes;
+    }
+
+    /**
+     * @return the queries with a full table scan or a temporary sort, most run first
+     */
+    public List<QueryShape> getFlaggedShapes() {
+        List<QueryShape> flagged = new ArrayList<QueryShape>();
+        for (QueryShape shape : getShapes()) {
+            if (shape.isFlagged()) flagged.add(shape);
+        }
+        Collections.sort(flagged, new Comparator<QueryShape>() {
+            @Override
+            public int compare(QueryShape aLhs, QueryShape aRhs) {
+                return aLhs.mCount < aRhs.mCount ? 1 : aLhs.mCount == aRhs.mCount ? 0 : -1;
+            }
+        });
+        return flagged;
+    }
+
+    /**
+     * @return {@code index(...)} declarations to add to each model's table creator
+     */
+    public Map<Class<?>, Set<String>> getSuggestedIndexes() {
+        Map<Class<?>, Set<String>> suggestions = new LinkedHashMap<Class<?>, Set<String>>();
+        for (QueryShape shape : getFlaggedShapes()) {
+            Class<?> model = DatabaseHelper.CLASS_MAP.get(shape.mTable);
+            if (model == null || shape.mSuggestedIndex == null) continue;
+
+            Set<String> indexes = suggestions.get(model);
+            if (indexes == null) {
+                indexes = new LinkedHashSet<String>();
+                suggestions.put(model, indexes);
+            }
+            indexes.add(shape.getIndexDeclaration());
+        }
+        return suggestions;
+    }
+
+    /**
+     * @return the flagged queries with their plans and the suggested indexes, for logs or bug reports
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (QueryShape shape : getFlaggedShapes()) {
+            report.append(shape.mCount).append("x ").append(shape.mSQL).append('\n');
+            for (String step : shape.mPlan) {
+                report.append("    ").append(step).append('\n');
+            }
+        }
+        for (Map.Entry<Class<?>, Set<String>> entry : getSuggestedIndexes().entrySet()) {
+            report.append(entry.getKey().getSimpleName()).append(':');
+            for (String index : entry.getValue()) {
+                report.append(" .").append(index);
+            }
+            report.append('\n');
+        }
+        return report.toString();
+    }
+
+    public synchronized void reset() {
+        mShapes.clear();
+    }
+
+    private static List<String> explain(SQLiteDatabase aDb, String aSQL, String[] aArgs) {
+        List<String> plan = new ArrayList<String>();
+        Cursor c = null;
+        try {
+            c = aDb.rawQuery("EXPLAIN QUERY PLAN " + aSQL, aArgs);
+            int detail = c.getColumnIndex("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detail != -1 ? detail : c.getColumnCount() - 1));
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "could not explain " + aSQL, e);
+        } finally {
+            if (c != null) c.close();
+        }
+        return plan;
+    }
+
+    static String[] suggestIndex(String aTable, String aSelection, String aSortOrder) {
+        List<String> equality = new ArrayList<String>();
+        String range = null;
+        if (!TextUtils.isEmpty(aSelection)) {
+            Matcher matcher = COMPARISON.matcher(aSelection);
+            while (matcher.find()) {
+                String column = column(aTable, matcher.group(1));
+                if (column == null) continue;
+
+                String op = matcher.group(2).toUpperCase(Locale.US);
+                if (op.equals("=") || op.equals("==") || op.equals("IN") || op.equals("IS")) {
+                    if (!equality.contains(column)) equality.add(column);
+                } else if (range == null) {
+                    range = column;
+                }
+            }
+        }
+
+        List<String> columns = new ArrayList<String>(equality);
+        boolean sorted = false;
+        if (!TextUtils.isEmpty(aSortOrder)) {
+            for (String term : aSortOrder.split(",")) {
+                String[] words = term.trim().split("\\s+");
+                String column = column(aTable, words[0]);
+                if (column == null) break;
+                if (!columns.contains(column)) columns.add(column);
+                sorted = true;
+            }
+        }
+        if (!sorted && range != null && !columns.contains(range)) {
+            columns.add(range);
+        }
+        return columns.isEmpty() ? null : columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * @return the column name without the table prefix, or null for {@code _id}, keywords and
+     * other tables' columns
+     */
+    private static String column(String aTable, String aName) {
+        int dot = aName.lastIndexOf('.');
+        if (dot != -1) {
+            if (!aName.substring(0, dot).equalsIgnoreCase(aTable)) return null;
+            aName = aName.substring(dot + 1);
+        }
+        if (aName.length() == 0 || BaseColumns._ID.equalsIgnoreCase(aName)
+                || KEYWORDS.contains(aName.toUpperCase(Locale.US))) {
+            return null;
+        }
+        return aName;
+    }
+
+    /**
+     * A distinct query and its plan.
+     */
+    public static final class QueryShape {
+        private final String       mTable;
+        private final String       mSQL;
+        private final List<String> mPlan;
+        private final boolean      mFullScan;
+        private final boolean      mTempSort;
+        private       long         mCount = 1;
+        private       String[]     mSuggestedIndex;
+
+        QueryShape(String aTable, String aSQL, List<String> aPlan) {
+            mTable = aTable;
+            mSQL = aSQL;
+            mPlan = Collections.unmodifiableList(aPlan);
+
+            boolean fullScan = false;
+            boolean tempSort = false;
+            for (String step : aPlan) {
+                String detail = step.toUpperCase(Locale.US);
+                if (detail.startsWith("SCAN ") && !detail.contains(" INDEX")
+                        && !detail.contains("CONSTANT ROW") && !detail.contains("SUBQUERY")) {
+                    fullScan = true;
+                }
+                if (detail.contains("USE TEMP B-TREE")) {
+                    tempSort = true;
+                }
+            }
+            mFullScan = fullScan;
+            mTempSort = tempSort;
+        }
+
+        QueryShape copy() {
+            QueryShape copy = new QueryShape(mTable, mSQL, mPlan);
+            copy.mCount = mCount;
+            copy.mSuggestedIndex = mSuggestedIndex;
+            return copy;
+        }
+
+        /**
+         * @return the table, or null for joins
+         */
+        public String getTable() {
+            return mTable;
+        }
+
+        public String getSQL() {
+            return mSQL;
+        }
+
+        /**
+         * @return the {@code detail} column of each {@code EXPLAIN QUERY PLAN} row
+         */
+        public List<String> getPlan() {
+            return mPlan;
+        }
+
+        public boolean isFullScan() {
+            return mFullScan;
+        }
+
+        public boolean usesTempSort() {
+            return mTempSort;
+        }
+
+        public boolean isFlagged() {
+            return mFullScan || mTempSort;
+        }
+
+        /**
+         * @return how many times the query ran while the analyzer was enabled
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the columns of the suggested index, or null
+         */
+        public String[] getSuggestedIndex() {
+            return mSuggestedIndex != null ? mSuggestedIndex.clone() : null;
+        }
+
+        /**
+         * @return the suggested index as a {@code SQLiteTable.Builder} call, or null
+         */
+        public String getIndexDeclaration() {
+            if (mSuggestedIndex == null) return null;
+            return "index(\"" + TextUtils.join("\", \"", mSuggestedIndex) + "\")";
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package io.vokal.db;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.*;
+
+/**
+ * LRU cache of query results, bounded by the estimated bytes of their rows. Results are read into
+ * memory and served as a {@link MatrixCursor}, so a repeated query does not touch SQLite.
+ * <p>
+ * Each entry remembers the tables it read. When a transaction commits,
+ * {@link SimpleContentProvider} passes its notification Uris to {@link #invalidate(Uri[])}, which
+ * drops the entries of the changed tables. A query that ran while a table changed is not stored,
+ * since it may have read the rows from before the change.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class QueryResultCache {
+
+    // rough per-object overhead of the materialized rows
+    private static final int ROW_OVERHEAD   = 16;
+    private static final int VALUE_OVERHEAD = 16;
+
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    private final long mMaxSize;
+    private final long mMaxEntrySize;
+
+    private long mSize;
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param aMaxSize estimated bytes of all results; a result over a quarter of it is not cached
+     */
+    QueryResultCache(long aMaxSize) {
+        mMaxSize = aMaxSize;
+        mMaxEntrySize = aMaxSize / 4;
+    }
+
+    /**
+     * @return a new cursor over the cached rows, or null
+     */
+    Cursor get(Key aKey) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(aKey);
+            if (entry != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        return entry != null ? entry.newCursor() : null;
+    }
+
+    /**
+     * @return the value to pass to {@link #put}, read before the query runs
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads the rows of {@code aCursor} and caches them unless the result is too large or one of
+     * {@code aTables} changed since {@code aGeneration}.
+     *
+     * @return a cursor over the cached rows, closing {@code aCursor}, or {@code aCursor} itself
+     * before its first row if it was not cached
+     */
+    Cursor put(Key aKey, String[] aTables, long aGeneration, Cursor aCursor) {
+        // every row costs at least its overhead, so skip reading results that cannot fit
+        long minSize = (long) Math.max(aCursor.getCount(), 0) * (ROW_OVERHEAD + 4 * aCursor.getColumnCount());
+        if (minSize > mMaxEntrySize) return aCursor;
+
+        Entry entry = read(aCursor, aTables);
+        if (entry == null) {
+            aCursor.moveToPosition(-1);
+            return aCursor;
+        }
+        aCursor.close();
+
+        synchronized (this) {
+            if (aGeneration == mGeneration) {
+                Entry previous = mEntries.put(aKey, entry);
+                if (previous != null) mSize -= previous.size;
+                mSize += entry.size;
+                trimToSize();
+            }
+        }
+        return entry.newCursor();
+    }
+
+    /**
+     * Drops the results read from the tables in the first path segment of each Uri.
+     */
+    synchronized void invalidate(Uri[] aUris) {
+        if (aUris.length == 0) return;
+        mGeneration++;
+
+        Set<String> tables = new HashSet<String>();
+        for (Uri uri : aUris) {
+            List<String> segments = uri.getPathSegments();
+            if (!segments.isEmpty()) tables.add(segments.get(0));
+        }
+
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            for (String table : entry.tables) {
+                if (tables.contains(table)) {
+                    mSize -= entry.size;
+                    entries.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the estimated bytes of the cached rows
+     */
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    private void trimToSize() {
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (mSize > mMaxSize && entries.hasNext()) {
+            mSize -= entries.next().size;
+            entries.remove();
+        }
+    }
+
+    private Entry read(Cursor aCursor, String[] aTables) {
+        String[] columns = aCursor.getColumnNames();
+        List<Object[]> rows = new ArrayList<Object[]>(Math.max(aCursor.getCount(), 0));
+        long size = 0;
+
+        aCursor.moveToPosition(-1);
+        while (aCursor.moveToNext()) {
+            Object[] row = new Object[columns.length];
+            size += ROW_OVERHEAD + 4 * columns.length;
+            for (int i = 0; i < columns.length; i++) {
+                switch (aCursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = aCursor.getLong(i);
+                        size += VALUE_OVERHEAD;
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = aCursor.getDouble(i);
+                        size += VALUE_OVERHEAD;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String value = aCursor.getString(i);
+                        row[i] = value;
+                        size += VALUE_OVERHEAD + 24 + 2 * value.length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = aCursor.getBlob(i);
+                        row[i] = blob;
+                        size += VALUE_OVERHEAD + blob.length;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (size > mMaxEntrySize) return null;
+            rows.add(row);
+        }
+        return new Entry(columns, rows.toArray(new Object[rows.size()][]), aTables, size);
+    }
+
+    private static final class Entry {
+        final String[]   columns;
+        final Object[][] rows;
+        final String[]   tables;
+        final long       size;
+
+        Entry(String[] aColumns, Object[][] aRows, String[] aTables, long aSize) {
+            columns = aColumns;
+            rows = aRows;
+            tables = aTables;
+            size = aSize;
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    static final class Key {
+        private final Uri      mUri;
+        private final String[] mProjection;
+        private final String   mSelection;
+        private final String[] mSelectionArgs;
+        private final String   mSortOrder;
+        private final int      mHash;
+
+        /**
+         * The arrays are copied.
+         */
+        Key(Uri aUri, String[] aProjection, String aSelection, String[] aSelectionArgs, String aSortOrder) {
+            mUri = aUri;
+            mProjection = aProjection != null ? aProjection.clone() : null;
+            mSelection = aSelection;
+            mSelectionArgs = aSelectionArgs != null ? aSelectionArgs.clone() : null;
+            mSortOrder = aSortOrder;
+
+            int hash = aUri.hashCode();
+            hash = 31 * hash + Arrays.hashCode(aProjection);
+            hash = 31 * hash + (aSelection != null ? aSelection.hashCode() : 0);
+            hash = 31 * hash + Arrays.hashCode(aSelectionArgs);
+            mHash = 31 * hash + (aSortOrder != null ? aSortOrder.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+            return mHash == other.mHash
+                    && mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && (mSelection != null ? mSelection.equals(other.mSelection) : other.mSelection == null)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs)
+                    && (mSortOrder != null ? mSortOrder.equals(other.mSortOrder) : other.mSortOrder == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+}
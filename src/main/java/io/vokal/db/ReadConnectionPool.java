@@ -0,0 +1,147 @@
+package io.vokal.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import io.vokal.db.util.CursorWrapper;
+
+/**
+ * Fixed set of read-only database handles used by {@link SimpleContentProvider#query} so queries do
+ * not serialize behind each other or behind the writer. Each handle has its own connection, with
+ * write-ahead logging they read concurrently with an open write transaction. A query gets the
+ * handle with the fewest open cursors, handles are opened on first use.
+ */
+class ReadConnectionPool {
+
+    private final String           mPath;
+    private final TuningProfile    mTuningProfile;
+    private final SQLiteDatabase[] mConnections;
+    private final int[]            mActive;
+    private final long[]           mUses;
+
+    private int     mNext;
+    private int     mInFlight;
+    private int     mPeakInFlight;
+    private long    mAcquired;
+    private long    mContended;
+    private boolean mClosed;
+
+    ReadConnectionPool(String aPath, int aSize, TuningProfile aTuningProfile) {
+        if (aSize < 1) throw new IllegalArgumentException("read connection pool needs at least one connection");
+        mPath = aPath;
+        mTuningProfile = aTuningProfile;
+        mConnections = new SQLiteDatabase[aSize];
+        mActive = new int[aSize];
+        mUses = new long[aSize];
+    }
+
+    /**
+     * @return the index of the connection to use, pass it to {@link #get} and {@link #release}
+     */
+    synchronized int acquire() {
+        if (mClosed) throw new IllegalStateException("read connection pool is closed");
+
+        int best = mNext;
+        for (int i = 0; i < mActive.length; i++) {
+            int index = (mNext + i) % mActive.length;
+            if (mActive[index] < mActive[best]) best = index;
+        }
+        mNext = (best + 1) % mActive.length;
+
+        if (mActive[best] > 0) mContended++;
+        mActive[best]++;
+        mUses[best]++;
+        mAcquired++;
+        mPeakInFlight = Math.max(mPeakInFlight, ++mInFlight);
+        return best;
+    }
+
+    SQLiteDatabase get(int aIndex) {
+        SQLiteDatabase db;
+        synchronized (this) {
+            db = mConnections[aIndex];
+        }
+        if (db != null) return db;
+
+        // open outside the pool lock, other connections stay usable meanwhile
+        db = SQLiteDatabase.openDatabase(mPath, null, SQLiteDatabase.OPEN_READONLY);
+        mTuningProfile.apply(db);
+        synchronized (this) {
+            if (mConnections[aIndex] == null && !mClosed) {
+                mConnections[aIndex] = db;
+                return db;
+            }
+        }
+        db.close();
+        synchronized (this) {
+            if (mConnections[aIndex] == null) throw new IllegalStateException("read connection pool is closed");
+            return mConnections[aIndex];
+        }
+    }
+
+    synchronized void release(int aIndex) {
+        mActive[aIndex]--;
+        mInFlight--;
+        if (mClosed && mActive[aIndex] == 0) closeConnection(aIndex);
+    }
+
+    /**
+     * @return {@code aCursor} holding the lease on connection {@code aIndex} until it is closed, so
+     * the connection stays open while the cursor fills further windows
+     */
+    Cursor lease(int aIndex, Cursor aCursor) {
+        return new LeasedCursor(aCursor, aIndex);
+    }
+
+    synchronized ReadPoolStats getStats() {
+        int open = 0;
+        for (SQLiteDatabase db : mConnections) {
+            if (db != null) open++;
+        }
+        return new ReadPoolStats(mConnections.length, open, mInFlight, mPeakInFlight, mAcquired, mContended,
+                                 mUses.clone());
+    }
+
+    /*
+     * stops handing out connections. Connections without leases close now, the others once their
+     * last cursor is closed
+     */
+    synchronized void close() {
+        mClosed = true;
+        for (int i = 0; i < mConnections.length; i++) {
+            if (mActive[i] == 0) closeConnection(i);
+        }
+    }
+
+    private void closeConnection(int aIndex) {
+        if (mConnections[aIndex] != null) {
+            mConnections[aIndex].close();
+            mConnections[aIndex] = null;
+        }
+    }
+
+    private class LeasedCursor extends CursorWrapper {
+
+        private final int mIndex;
+        private boolean   mReleased;
+
+        LeasedCursor(Cursor aCursor, int aIndex) {
+            super(aCursor);
+            mIndex = aIndex;
+        }
+
+        @Override
+        public void close() {
+            try {
+                super.close();
+            } finally {
+                synchronized (this) {
+                    if (!mReleased) {
+                        mReleased = true;
+                        release(mIndex);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.vokal.db;
+
+/**
+ * Snapshot of the read-only connection pool, see {@link SimpleContentProvider#getReadPoolStats()}.
+ */
+public class ReadPoolStats {
+
+    private final int    mSize;
+    private final int    mOpenConnections;
+    private final int    mInFlight;
+    private final int    mPeakInFlight;
+    private final long   mQueries;
+    private final long   mContendedQueries;
+    private final long[] mQueriesPerConnection;
+
+    ReadPoolStats(int aSize, int aOpenConnections, int aInFlight, int aPeakInFlight,
+                  long aQueries, long aContendedQueries, long[] aQueriesPerConnection) {
+        mSize = aSize;
+        mOpenConnections = aOpenConnections;
+        mInFlight = aInFlight;
+        mPeakInFlight = aPeakInFlight;
+        mQueries = aQueries;
+        mContendedQueries = aContendedQueries;
+        mQueriesPerConnection = aQueriesPerConnection;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getOpenConnections() {
+        return mOpenConnections;
+    }
+
+    /**
+     * @return queries executing right now
+     */
+    public int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return the most queries that executed at the same time
+     */
+    public int getPeakInFlight() {
+        return mPeakInFlight;
+    }
+
+    public long getQueries() {
+        return mQueries;
+    }
+
+    /**
+     * @return queries that had to share a connection with another query in flight
+     */
+    public long getContendedQueries() {
+        return mContendedQueries;
+    }
+
+    public long[] getQueriesPerConnection() {
+        return mQueriesPerConnection.clone();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReadPoolStats{size=%d, open=%d, inFlight=%d, peak=%d, queries=%d, contended=%d}",
+                             mSize, mOpenConnections, mInFlight, mPeakInFlight, mQueries, mContendedQueries);
+    }
+}
@@ -28,6 +28,7 @@ import android.content.OperationApplicationException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteTransactionListener;
+import android.os.SystemClock;
 
 /**
  * General purpose {@link android.content.ContentProvider} base class that uses SQLiteDatabase for storage.
@@ -36,26 +37,82 @@ public abstract class SQLiteContentProvider extends ContentProvider implements S
 
     private static final String TAG = "SQLiteContentProvider";
 
-    private          SQLiteOpenHelper mOpenHelper;
-    private volatile boolean          mNotifyChange;
+    private SQLiteOpenHelper mOpenHelper;
 
-    private final Set<Uri> mNotifyUris = Collections.synchronizedSet(new HashSet<Uri>());
+    /**
+     * @deprecated use {@link #getDatabase()}. Holds the writable database once a write has started.
+     */
+    @Deprecated
+    protected volatile SQLiteDatabase mDb;
 
-    protected SQLiteDatabase mDb;
+    private final ThreadLocal<TransactionContext> mTransaction = new ThreadLocal<TransactionContext>() {
+        @Override
+        protected TransactionContext initialValue() {
+            return new TransactionContext();
+        }
+    };
 
-    private final        ThreadLocal<Boolean> mApplyingBatch          = new ThreadLocal<Boolean>();
-    private static final int                  SLEEP_AFTER_YIELD_DELAY = 4000;
+    private volatile YieldPolicy mYieldPolicy = YieldPolicy.DEFAULT;
 
     /**
-     * Maximum number of operations allowed in a batch between yield points.
+     * How {@link #applyBatch} handles operation lists without enough yield points.
      */
-    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
+    public enum BatchMode {
+        /** only yield at yield-allowed operations and enforce the policy's operation limit */
+        STRICT,
+        /** treat every operation as a yield point once the yield policy budget is used up */
+        AUTO_YIELD,
+        /** commit a sub-transaction after every chunk of operations */
+        CHUNKED
+    }
+
+    public static final int DEFAULT_BATCH_CHUNK_SIZE = 500;
+
+    private volatile BatchMode mBatchMode      = BatchMode.STRICT;
+    private volatile int       mBatchChunkSize = DEFAULT_BATCH_CHUNK_SIZE;
 
     /**
-     * @return Number of operations that can be applied at once without a yield point.
+     * @return Number of operations that can be applied at once without a yield point, 0 for no limit.
+     * {@link #applyBatch} enforces it in {@link BatchMode#STRICT}, defaults to the yield policy's limit.
      */
     public int getMaxOperationsPerYield() {
-        return MAX_OPERATIONS_PER_YIELD_POINT;
+        return mYieldPolicy.getMaxOperationsPerYieldPoint();
+    }
+
+    /**
+     * Sets how often {@link #bulkInsert} and {@link #applyBatch} offer the write lock to other threads.
+     */
+    public void setYieldPolicy(YieldPolicy aPolicy) {
+        if (aPolicy == null) throw new IllegalArgumentException("yield policy cannot be null");
+        mYieldPolicy = aPolicy;
+    }
+
+    public YieldPolicy getYieldPolicy() {
+        return mYieldPolicy;
+    }
+
+    /**
+     * Opt in to {@link BatchMode#AUTO_YIELD} or {@link BatchMode#CHUNKED} for large operation lists.
+     * Back-references keep working across yields and chunks, but only the operations within a
+     * chunk are applied atomically.
+     */
+    public void setBatchMode(BatchMode aMode) {
+        setBatchMode(aMode, DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    public void setBatchMode(BatchMode aMode, int aChunkSize) {
+        if (aMode == null) throw new IllegalArgumentException("batch mode cannot be null");
+        if (aChunkSize < 1) throw new IllegalArgumentException("chunk size must be positive");
+        mBatchMode = aMode;
+        mBatchChunkSize = aChunkSize;
+    }
+
+    public BatchMode getBatchMode() {
+        return mBatchMode;
+    }
+
+    public int getBatchChunkSize() {
+        return mBatchChunkSize;
     }
 
     @Override
@@ -85,15 +142,23 @@ public abstract class SQLiteContentProvider extends ContentProvider implements S
 
     protected abstract void notifyChange();
 
+    /**
+     * Queues a Uri to notify once the transaction ends. Single row writes pass the item Uri so
+     * observers of other rows are not notified, multi-row writes pass the table Uri.
+     */
     protected void addNotificationUri(Uri aUri) {
         if (aUri != null) {
-            mNotifyUris.add(aUri);
+            mTransaction.get().notifyUris.add(aUri);
         }
     }
 
+    /**
+     * @return the Uris changed by the calling thread's transaction, and forgets them
+     */
     public Uri[] getNotificationUris() {
-        Uri[] uris = mNotifyUris.toArray(new Uri[mNotifyUris.size()]);
-        mNotifyUris.clear();
+        Set<Uri> pending = mTransaction.get().notifyUris;
+        Uri[] uris = pending.toArray(new Uri[pending.size()]);
+        pending.clear();
         return uris;
     }
 
@@ -101,34 +166,45 @@ public abstract class SQLiteContentProvider extends ContentProvider implements S
         return mOpenHelper;
     }
 
-    private boolean applyingBatch() {
-        return mApplyingBatch.get() != null && mApplyingBatch.get();
+    /**
+     * @return the database of the transaction running on the calling thread, call from the
+     * {@code *InTransaction} methods
+     */
+    protected SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = mTransaction.get().db;
+        return db != null ? db : mOpenHelper.getWritableDatabase();
+    }
+
+    /**
+     * @return true if the calling thread is inside one of this provider's write transactions
+     */
+    protected boolean inTransaction() {
+        return mTransaction.get().db != null;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        Uri result = null;
-        boolean applyingBatch = applyingBatch();
-        if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransactionWithListener(this);
+        Uri result;
+        TransactionContext tx = mTransaction.get();
+        if (!tx.applyingBatch) {
+            beginTransaction(tx);
             try {
                 result = insertInTransaction(uri, values);
                 if (result != null) {
-                    mNotifyChange = true;
-                    addNotificationUri(uri);
+                    tx.notifyChange = true;
+                    addNotificationUri(result);
                 }
-                mDb.setTransactionSuccessful();
+                tx.db.setTransactionSuccessful();
             } finally {
-                mDb.endTransaction();
+                endTransaction(tx);
             }
 
             onEndTransaction();
         } else {
             result = insertInTransaction(uri, values);
             if (result != null) {
-                mNotifyChange = true;
-                addNotificationUri(uri);
+                tx.notifyChange = true;
+                addNotificationUri(result);
             }
         }
         return result;
@@ -137,53 +213,98 @@ public abstract class SQLiteContentProvider extends ContentProvider implements S
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         int numValues = values.length;
-        mDb = mOpenHelper.getWritableDatabase();
-        mDb.beginTransactionWithListener(this);
+        YieldPolicy policy = mYieldPolicy;
+        int rowsSinceYield = 0;
+        long lastYield = SystemClock.uptimeMillis();
+        TransactionContext tx = mTransaction.get();
+        beginTransaction(tx);
         try {
             for (int i = 0; i < numValues; i++) {
                 Uri result = insertInTransaction(uri, values[i]);
                 if (result != null) {
-                    mNotifyChange = true;
+                    tx.notifyChange = true;
                     addNotificationUri(uri);
                 }
-                boolean savedNotifyChange = mNotifyChange;
-                SQLiteDatabase savedDb = mDb;
-                mDb.yieldIfContendedSafely();
-                mDb = savedDb;
-                mNotifyChange = savedNotifyChange;
+                long now = SystemClock.uptimeMillis();
+                if (policy.shouldYield(++rowsSinceYield, now - lastYield)) {
+                    yieldIfContended(tx, policy.getSleepAfterYield());
+                    rowsSinceYield = 0;
+                    lastYield = SystemClock.uptimeMillis();
+                }
             }
-            mDb.setTransactionSuccessful();
+            tx.db.setTransactionSuccessful();
         } finally {
-            mDb.endTransaction();
+            endTransaction(tx);
         }
 
         onEndTransaction();
         return numValues;
     }
 
+    /**
+     * Inserts rows as they are produced by {@code rows}, committing a sub-transaction after every
+     * {@link #getBatchChunkSize()} rows so memory use does not depend on the number of rows.
+     * The {@link ContentValues} returned by the iterator may be reused between rows.
+     *
+     * @return the number of rows read from the iterator
+     */
+    public int bulkInsert(Uri uri, Iterator<ContentValues> rows) {
+        int count = 0;
+        int chunkSize = mBatchChunkSize;
+        YieldPolicy policy = mYieldPolicy;
+        int rowsSinceYield = 0;
+        long lastYield = SystemClock.uptimeMillis();
+        TransactionContext tx = mTransaction.get();
+        beginTransaction(tx);
+        try {
+            while (rows.hasNext()) {
+                Uri result = insertInTransaction(uri, rows.next());
+                if (result != null) {
+                    tx.notifyChange = true;
+                    addNotificationUri(uri);
+                }
+                rowsSinceYield++;
+                if (++count % chunkSize == 0) {
+                    commitChunk(tx);
+                    rowsSinceYield = 0;
+                    lastYield = SystemClock.uptimeMillis();
+                } else if (policy.shouldYield(rowsSinceYield, SystemClock.uptimeMillis() - lastYield)) {
+                    yieldIfContended(tx, policy.getSleepAfterYield());
+                    rowsSinceYield = 0;
+                    lastYield = SystemClock.uptimeMillis();
+                }
+            }
+            tx.db.setTransactionSuccessful();
+        } finally {
+            endTransaction(tx);
+        }
+
+        onEndTransaction();
+        return count;
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        int count = 0;
-        boolean applyingBatch = applyingBatch();
-        if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransactionWithListener(this);
+        int count;
+        TransactionContext tx = mTransaction.get();
+        if (!tx.applyingBatch) {
+            beginTransaction(tx);
             try {
                 count = updateInTransaction(uri, values, selection, selectionArgs);
                 if (count > 0) {
-                    mNotifyChange = true;
+                    tx.notifyChange = true;
                     addNotificationUri(uri);
                 }
-                mDb.setTransactionSuccessful();
+                tx.db.setTransactionSuccessful();
             } finally {
-                mDb.endTransaction();
+                endTransaction(tx);
             }
 
             onEndTransaction();
         } else {
             count = updateInTransaction(uri, values, selection, selectionArgs);
             if (count > 0) {
-                mNotifyChange = true;
+                tx.notifyChange = true;
                 addNotificationUri(uri);
             }
         }
@@ -193,27 +314,26 @@ public abstract class SQLiteContentProvider extends ContentProvider implements S
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        int count = 0;
-        boolean applyingBatch = applyingBatch();
-        if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransactionWithListener(this);
+        int count;
+        TransactionContext tx = mTransaction.get();
+        if (!tx.applyingBatch) {
+            beginTransaction(tx);
             try {
                 count = deleteInTransaction(uri, selection, selectionArgs);
                 if (count > 0) {
-                    mNotifyChange = true;
+                    tx.notifyChange = true;
                     addNotificationUri(uri);
                 }
-                mDb.setTransactionSuccessful();
+                tx.db.setTransactionSuccessful();
             } finally {
-                mDb.endTransaction();
+                endTransaction(tx);
             }
 
             onEndTransaction();
         } else {
             count = deleteInTransaction(uri, selection, selectionArgs);
             if (count > 0) {
-                mNotifyChange = true;
+                tx.notifyChange = true;
                 addNotificationUri(uri);
             }
         }
@@ -225,41 +345,92 @@ public abstract class SQLiteContentProvider extends ContentProvider implements S
             throws OperationApplicationException {
         int ypCount = 0;
         int opCount = 0;
-        mDb = mOpenHelper.getWritableDatabase();
-        mDb.beginTransactionWithListener(this);
+        YieldPolicy policy = mYieldPolicy;
+        BatchMode mode = mBatchMode;
+        int chunkSize = mBatchChunkSize;
+        int maxOperations = mode == BatchMode.STRICT ? getMaxOperationsPerYield() : 0;
+        int rowsSinceYield = 0;
+        long lastYield = SystemClock.uptimeMillis();
+        TransactionContext tx = mTransaction.get();
+        boolean nestedBatch = tx.applyingBatch;
+        beginTransaction(tx);
         try {
-            mApplyingBatch.set(true);
+            tx.applyingBatch = true;
             final int numOperations = operations.size();
             final ContentProviderResult[] results = new ContentProviderResult[numOperations];
             for (int i = 0; i < numOperations; i++) {
-                if (++opCount > getMaxOperationsPerYield()) {
+                if (maxOperations > 0 && ++opCount > maxOperations) {
                     throw new OperationApplicationException(
                             "Too many content provider operations between yield points. "
                                     + "The maximum number of operations per yield point is "
-                                    + MAX_OPERATIONS_PER_YIELD_POINT, ypCount);
+                                    + maxOperations, ypCount);
                 }
                 final ContentProviderOperation operation = operations.get(i);
-                if (i > 0 && operation.isYieldAllowed()) {
-                    opCount = 0;
-                    boolean savedNotifyChange = mNotifyChange;
-                    if (mDb.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY)) {
-                        mDb = mOpenHelper.getWritableDatabase();
-                        mNotifyChange = savedNotifyChange;
+                if (mode == BatchMode.CHUNKED) {
+                    if (i > 0 && i % chunkSize == 0) {
+                        commitChunk(tx);
                         ypCount++;
                     }
+                } else if (i > 0 && (operation.isYieldAllowed() || mode == BatchMode.AUTO_YIELD)) {
+                    opCount = 0;
+                    if (policy.shouldYield(rowsSinceYield, SystemClock.uptimeMillis() - lastYield)) {
+                        if (yieldIfContended(tx, policy.getSleepAfterYield())) {
+                            ypCount++;
+                        }
+                        rowsSinceYield = 0;
+                        lastYield = SystemClock.uptimeMillis();
+                    }
                 }
 
                 results[i] = operation.apply(this, results, i);
+                rowsSinceYield++;
             }
-            mDb.setTransactionSuccessful();
+            tx.db.setTransactionSuccessful();
             return results;
         } finally {
-            mApplyingBatch.set(false);
-            mDb.endTransaction();
+            tx.applyingBatch = nestedBatch;
+            endTransaction(tx);
             onEndTransaction();
         }
     }
 
+    /**
+     * Starts a transaction, nested in the calling thread's open one if a write re-enters the
+     * provider. Nested transactions only commit with the outermost.
+     */
+    private void beginTransaction(TransactionContext aTx) {
+        if (aTx.depth == 0) {
+            aTx.db = mOpenHelper.getWritableDatabase();
+            mDb = aTx.db;
+        }
+        aTx.db.beginTransactionWithListener(this);
+        aTx.depth++;
+    }
+
+    private void endTransaction(TransactionContext aTx) {
+        try {
+            aTx.db.endTransaction();
+        } finally {
+            if (--aTx.depth == 0) {
+                aTx.db = null;
+            }
+        }
+    }
+
+    /*
+     * a nested transaction cannot yield or commit by itself, only the outermost one does
+     */
+    private static boolean yieldIfContended(TransactionContext aTx, long aSleepAfterYield) {
+        return aTx.depth == 1 && aTx.db.yieldIfContendedSafely(aSleepAfterYield);
+    }
+
+    private void commitChunk(TransactionContext aTx) {
+        if (aTx.depth > 1) return;
+        aTx.db.setTransactionSuccessful();
+        aTx.db.endTransaction();
+        aTx.db.beginTransactionWithListener(this);
+    }
+
     @Override
     public void onBegin() {
         onBeginTransaction();
@@ -282,9 +453,23 @@ public abstract class SQLiteContentProvider extends ContentProvider implements S
     }
 
     protected void onEndTransaction() {
-        if (mNotifyChange) {
-            mNotifyChange = false;
+        TransactionContext tx = mTransaction.get();
+        // a nested write notifies with the outermost transaction
+        if (tx.notifyChange && tx.depth == 0) {
+            tx.notifyChange = false;
             notifyChange();
         }
     }
+
+    /**
+     * Write state of the transaction running on one thread. Binder threads writing at the same
+     * time each have their own, they only meet at the database's own locking.
+     */
+    private static final class TransactionContext {
+        SQLiteDatabase db;
+        int            depth;
+        boolean        notifyChange;
+        boolean        applyingBatch;
+        final Set<Uri> notifyUris = new LinkedHashSet<Uri>();
+    }
 }
@@ -2,6 +2,8 @@ package io.vokal.db;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
 import android.provider.BaseColumns;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -56,6 +58,9 @@ public class SQLiteTable {
     private ContentValues[]   mSeed;
     private String[]          mUpdateSQL;
     private String            mNullHack;
+    private String[]          mUpsertKey;
+    private int               mConflictRule = SQLiteDatabase.CONFLICT_REPLACE;
+    private String[]          mFullTextColumns;
 
     private boolean           mRecreateOnUpgrade;
 
@@ -152,10 +157,96 @@ public class SQLiteTable {
         return mCreateSQL;
     }
 
+    /**
+     * @return the primary key column(s), declared either as a column or a table constraint
+     */
+    public @Nullable String[] getPrimaryKey() {
+        if (mPrimaryKey != null) {
+            return mPrimaryKey;
+        }
+        for (Column col : mColumns) {
+            if (col.primary_key) {
+                return new String[] {col.name};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the {@code SQLiteDatabase.CONFLICT_*} algorithm used for inserts into this table
+     */
+    public int getConflictRule() {
+        return mConflictRule;
+    }
+
+    /**
+     * @return the columns inserts are matched on to update existing rows in place, or null
+     */
+    public @Nullable String[] getUpsertKey() {
+        return mUpsertKey;
+    }
+
     public ArrayList<String> getIndicesSQL() {
         return mIndicesSQL;
     }
 
+    /**
+     * @return the columns indexed in the full-text table, or null
+     */
+    public @Nullable String[] getFullTextColumns() {
+        return mFullTextColumns;
+    }
+
+    public String getFullTextTableName() {
+        return mTableName.concat("_fts");
+    }
+
+    /**
+     * @return statements that create the FTS4 external-content table over this table's rowid,
+     * replacing any previous one, with the triggers that keep it in sync and a rebuild from the
+     * existing rows; or null if no columns are full-text indexed. The triggers rely on
+     * {@code PRAGMA recursive_triggers} for rows deleted by {@code INSERT OR REPLACE}.
+     * <p>
+     * External content tables need SQLite 3.7.9 (API 16); older releases get an FTS3 table that
+     * stores its own copy of the text.
+     */
+    public @Nullable ArrayList<String> getFullTextSQL() {
+        if (mFullTextColumns == null) return null;
+
+        String fts = getFullTextTableName();
+        String columns = TextUtils.join(", ", mFullTextColumns);
+        String values = "new.".concat(TextUtils.join(", new.", mFullTextColumns));
+
+        ArrayList<String> sql = new ArrayList<String>();
+        for (String trigger : new String[] {"bu", "bd", "au", "ai"}) {
+            sql.add(String.format("DROP TRIGGER IF EXISTS %s_%s;", fts, trigger));
+        }
+        sql.add(String.format("DROP TABLE IF EXISTS %s;", fts));
+        boolean external = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        if (external) {
+            sql.add(String.format("CREATE VIRTUAL TABLE %s USING fts4(content=\"%s\", %s);", fts, mTableName, columns));
+        } else {
+            sql.add(String.format("CREATE VIRTUAL TABLE %s USING fts3(%s);", fts, columns));
+        }
+        sql.add(String.format("CREATE TRIGGER %1$s_bu BEFORE UPDATE ON %2$s BEGIN "
+                                      + "DELETE FROM %1$s WHERE docid=old.rowid; END;", fts, mTableName));
+        sql.add(String.format("CREATE TRIGGER %1$s_bd BEFORE DELETE ON %2$s BEGIN "
+                                      + "DELETE FROM %1$s WHERE docid=old.rowid; END;", fts, mTableName));
+        sql.add(String.format("CREATE TRIGGER %1$s_au AFTER UPDATE ON %2$s BEGIN "
+                                      + "INSERT INTO %1$s(docid, %3$s) VALUES(new.rowid, %4$s); END;",
+                              fts, mTableName, columns, values));
+        sql.add(String.format("CREATE TRIGGER %1$s_ai AFTER INSERT ON %2$s BEGIN "
+                                      + "INSERT INTO %1$s(docid, %3$s) VALUES(new.rowid, %4$s); END;",
+                              fts, mTableName, columns, values));
+        if (external) {
+            sql.add(String.format("INSERT INTO %1$s(%1$s) VALUES('rebuild');", fts));
+        } else {
+            sql.add(String.format("INSERT INTO %1$s(docid, %3$s) SELECT rowid, %3$s FROM %2$s;",
+                                  fts, mTableName, columns));
+        }
+        return sql;
+    }
+
     public ContentValues[] getSeedValues() {
         return mSeed;
     }
@@ -211,6 +302,12 @@ public class SQLiteTable {
         return column.name.concat(" ").concat(type);
     }
 
+    private void setFullTextColumns(String[] aColumns) {
+        if (aColumns == null || aColumns.length == 0)
+            throw new IllegalArgumentException("fullText() requires at least one column");
+        mFullTextColumns = aColumns;
+    }
+
     public boolean isCleanUpgrade() {
         return mRecreateOnUpgrade;
     }
@@ -358,6 +455,33 @@ public class SQLiteTable {
             return this;
         }
 
+        //--- Write Strategy
+
+        /**
+         * Sets the conflict algorithm for inserts, one of the {@code SQLiteDatabase.CONFLICT_*}
+         * constants. Defaults to {@code CONFLICT_REPLACE}.
+         */
+        public Builder onConflict(int aConflictRule) {
+            if (aConflictRule < SQLiteDatabase.CONFLICT_NONE || aConflictRule > SQLiteDatabase.CONFLICT_REPLACE)
+                throw new IllegalArgumentException("unknown conflict algorithm " + aConflictRule);
+            mTable.mConflictRule = aConflictRule;
+            return this;
+        }
+
+        /**
+         * Every insert into the table with values for all {@code aKeyColumns}, not only those
+         * through {@link DatabaseHelper#getUpsertUri(Class)}, updates the non-key columns of the
+         * matching row in place and keeps its row ID; rows without a match are inserted with the
+         * {@link #onConflict(int)} algorithm. The key should be covered by a UNIQUE constraint or
+         * index.
+         */
+        public Builder upsert(String... aKeyColumns) {
+            if (aKeyColumns == null || aKeyColumns.length == 0)
+                throw new IllegalArgumentException("upsert() requires at least one key column");
+            mTable.mUpsertKey = aKeyColumns;
+            return this;
+        }
+
         public Builder index(String... aColumns) {
             String index_name = mTable.mTableName.concat("_")
                     .concat(TextUtils.join("_", aColumns).toLowerCase(Locale.getDefault()))
@@ -367,6 +491,16 @@ public class SQLiteTable {
             return this;
         }
 
+        /**
+         * Indexes the text columns in an FTS4 table (FTS3 below API 16, which duplicates the
+         * text), searched through {@link DatabaseHelper#getSearchUri(Class, String)}. Declare it
+         * in the upgrade that adds it as well.
+         */
+        public Builder fullText(String... aColumns) {
+            mTable.setFullTextColumns(aColumns);
+            return this;
+        }
+
         public SQLiteTable build() {
             if (!androidIdDefined) {
                 Column col = new Column(BaseColumns._ID, FIELD_TYPE_INTEGER);
@@ -468,6 +602,16 @@ public class SQLiteTable {
             return this;
         }
 
+        /**
+         * Replaces the table's full-text index and indexes the existing rows.
+         *
+         * @see Builder#fullText(String...)
+         */
+        public Upgrader fullText(String... aColumns) {
+            mTable.setFullTextColumns(aColumns);
+            return this;
+        }
+
         public Upgrader recreate() {
             mTable.mRecreateOnUpgrade = true;
             return this;
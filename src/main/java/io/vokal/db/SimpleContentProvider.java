@@ -1,15 +1,26 @@
 package io.vokal.db;
 
+import android.annotation.TargetApi;
 import android.content.*;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.*;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import io.vokal.db.util.RowStreamReader;
 
 import static android.text.TextUtils.isEmpty;
 
@@ -17,20 +28,81 @@ public class SimpleContentProvider extends SQLiteContentProvider {
 
     private static final String NAME = SimpleContentProvider.class.getCanonicalName();
 
-    private static final String KEY_DB_NAME    = "database_name";
-    private static final String KEY_DB_VERSION = "database_version";
+    /**
+     * {@link #call} method that inserts rows read from the {@link ParcelFileDescriptor} in
+     * {@link #EXTRA_PIPE} into the table Uri passed as the argument, returning the number of rows
+     * in {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_STREAM_INSERT = "stream_insert";
+    public static final String EXTRA_PIPE           = "pipe";
+    public static final String EXTRA_COUNT          = "count";
+
+    /**
+     * Query parameter that turns an insert into an update-or-insert on {@code _id} or the table's
+     * primary key, see {@link DatabaseHelper#getUpsertUri(Class)}.
+     */
+    public static final String PARAM_UPSERT   = "upsert";
+
+    /**
+     * Query parameter with the maximum number of rows a query returns, e.g. for keyset paging.
+     */
+    public static final String PARAM_LIMIT    = "limit";
+
+    /**
+     * Last path segments of a table or join Uri that query an aggregate instead of rows.
+     * {@code _count} returns {@link #COLUMN_COUNT}, {@code _exists} returns {@link #COLUMN_EXISTS}
+     * as 0 or 1, and {@code _agg} returns {@link #COLUMN_VALUE} of {@link #PARAM_FUNCTION} applied
+     * to {@link #PARAM_COLUMN}, per group of the optional comma separated {@link #PARAM_GROUP_BY}
+     * columns, which are returned first.
+     */
+    public static final String PATH_COUNT     = "_count";
+    public static final String PATH_EXISTS    = "_exists";
+    public static final String PATH_AGGREGATE = "_agg";
+    public static final String PARAM_FUNCTION = "fn";
+    public static final String PARAM_COLUMN   = "col";
+    public static final String PARAM_GROUP_BY = "groupBy";
+    public static final String COLUMN_COUNT   = "_count";
+    public static final String COLUMN_EXISTS  = "_exists";
+    public static final String COLUMN_VALUE   = "_value";
+
+    /**
+     * Last path segment of a table Uri that returns the rows whose
+     * {@link SQLiteTable.Builder#fullText(String...)} columns match the FTS expression in
+     * {@link #PARAM_QUERY}, with their {@link #COLUMN_RANK}, the number of matched terms. Rows are
+     * sorted by rank unless a sort order is given. See {@link DatabaseHelper#getSearchUri}.
+     */
+    public static final String PATH_SEARCH    = "_search";
+    public static final String PARAM_QUERY    = "q";
+    public static final String COLUMN_RANK    = "_rank";
+
+    private static final List<String> AGGREGATE_FUNCTIONS = Arrays.asList("count", "sum", "total", "min", "max", "avg");
+    private static final Pattern      COLUMN_NAME         = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+
+    private static final String KEY_DB_NAME            = "database_name";
+    private static final String KEY_DB_VERSION         = "database_version";
+    private static final String KEY_NOTIFY_DEBOUNCE    = "notification_debounce";
+    private static final String KEY_NOTIFY_MAX_LATENCY = "notification_max_latency";
+    private static final String KEY_ANALYZE_QUERIES    = "analyze_queries";
+    private static final String KEY_RESULT_CACHE_SIZE  = "result_cache_size";
 
     private static final String DEFAULT_AUTHORITY = "com.vokal.database";
     private static final String DEFAULT_NAME      = "vokal.db";
 
-    static final UriMatcher URI_MATCHER      = new UriMatcher(UriMatcher.NO_MATCH);
-    static final UriMatcher URI_ID_MATCHER   = new UriMatcher(UriMatcher.NO_MATCH);
-    static final UriMatcher URI_JOIN_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
+    static final List<String> JOIN_TABLES  = new CopyOnWriteArrayList<String>();
+    static final List<Join>   JOIN_DETAILS = new CopyOnWriteArrayList<Join>();
 
-    static final ArrayList<String> JOIN_TABLES  = new ArrayList<String>();
-    static final ArrayList<Join>   JOIN_DETAILS = new ArrayList<Join>();
+    // maps set by the app, and the default maps of joins, built when a join is registered and
+    // again from the actual columns when the database opens; values are unmodifiable
+    static final Map<Uri, Map<String, String>> PROJECTION_MAPS   = new ConcurrentHashMap<Uri, Map<String, String>>();
+    static final Map<Uri, Map<String, String>> JOIN_DEFAULT_MAPS = new ConcurrentHashMap<Uri, Map<String, String>>();
 
-    static final HashMap<Uri, Map<String, String>> PROJECTION_MAPS = new HashMap<Uri, Map<String, String>>();
+    private static final String[] ID_KEY   = new String[] {BaseColumns._ID};
+    private static final String   ROWID    = "rowid";
+    private static final String[] ROWID_KEY = new String[] {ROWID};
+
+    private static final Object    ROUTE_LOCK = new Object();
+    private static volatile Routes sRoutes;
+    private static int             sRouteGeneration; // guarded by ROUTE_LOCK
 
     static ProviderInfo sProviderInfo;
     static String       sContentAuthority;
@@ -39,6 +111,22 @@ public class SimpleContentProvider extends SQLiteContentProvider {
 
     protected DatabaseHelper mHelper;
 
+    private final StatementCache mStatementCache = new StatementCache();
+    private final QueryCache     mQueryCache     = new QueryCache();
+
+    private volatile QueryPlanAnalyzer mPlanAnalyzer;
+    private volatile QueryResultCache  mResultCache;
+
+    private final NotificationCoalescer mNotifier = new NotificationCoalescer(new NotificationCoalescer.Dispatcher() {
+        @Override
+        public void dispatch(Collection<Uri> aUris) {
+            ContentResolver resolver = getContext().getContentResolver();
+            for (Uri uri : aUris) {
+                resolver.notifyChange(uri, null);
+            }
+        }
+    });
+
     public static String getContentAuthority(Context aContext) {
         if (sContentAuthority == null) {
             sContentAuthority = DEFAULT_AUTHORITY;
@@ -80,12 +168,35 @@ public class SimpleContentProvider extends SQLiteContentProvider {
                 sDatabaseName = sProviderInfo.metaData.getString(KEY_DB_NAME);
             }
             sDatabaseVersion = sProviderInfo.metaData.getInt(KEY_DB_VERSION, sDatabaseVersion);
+
+            int debounce = sProviderInfo.metaData.getInt(KEY_NOTIFY_DEBOUNCE, 0);
+            int maxLatency = sProviderInfo.metaData.getInt(KEY_NOTIFY_MAX_LATENCY, debounce);
+            mNotifier.setDebounce(debounce, maxLatency);
+
+            if (sProviderInfo.metaData.getBoolean(KEY_ANALYZE_QUERIES, false)) {
+                mPlanAnalyzer = new QueryPlanAnalyzer();
+            }
+            setResultCacheSize(sProviderInfo.metaData.getInt(KEY_RESULT_CACHE_SIZE, 0));
         }
 
-        mHelper = new DatabaseHelper(getContext(), sDatabaseName, sDatabaseVersion);
+        TuningProfile tuning = TuningProfile.fromMetaData(sProviderInfo != null ? sProviderInfo.metaData : null);
+        mHelper = new DatabaseHelper(getContext(), sDatabaseName, sDatabaseVersion, tuning);
         return super.onCreate();
     }
 
+    /**
+     * Replaces the tuning profile read from the {@code database_*} metadata. Applied when the
+     * database is next opened.
+     */
+    public void setTuningProfile(TuningProfile aProfile) {
+        if (aProfile == null) throw new IllegalArgumentException("tuning profile cannot be null");
+        mHelper.setTuningProfile(aProfile);
+    }
+
+    public TuningProfile getTuningProfile() {
+        return mHelper.getTuningProfile();
+    }
+
     @Override
     protected SQLiteOpenHelper getDatabaseHelper(Context context) {
         return mHelper;
@@ -94,13 +205,20 @@ public class SimpleContentProvider extends SQLiteContentProvider {
     @Override
     protected Uri insertInTransaction(Uri aUri, ContentValues aValues) {
         Uri result = null;
-        UriMatch match = getTableFromUri(aUri);
-        if (match != null) {
-            if (match.join)
+        Route route = getRoute(aUri);
+        if (route != null) {
+            if (route.join != null || route.item || route.aggregate != Route.ROWS)
                 return null;
 
-            // TODO: store table null hacks
-            long id = mDb.insertWithOnConflict(match.table, "", aValues, getConflictRule(match.table));
+            long id;
+            if (isUpsert(aUri)) {
+                id = upsertInTransaction(route.table, aValues, getUpsertKey(route.table, aValues));
+                aUri = aUri.buildUpon().clearQuery().build();
+            } else if (route.upsertKey != null) {
+                id = upsertInTransaction(route.table, aValues, route.upsertKey);
+            } else {
+                id = insertRow(route.table, aValues);
+            }
 
             if (id > -1) {
                 result = ContentUris.withAppendedId(aUri, id);
@@ -110,21 +228,157 @@ public class SimpleContentProvider extends SQLiteContentProvider {
         return result;
     }
 
+    private long insertRow(String aTable, ContentValues aValues) {
+        SQLiteDatabase db = getDatabase();
+        if (aValues == null || aValues.size() == 0) {
+            // TODO: store table null hacks
+            return db.insertWithOnConflict(aTable, "", aValues, getConflictRule(aTable));
+        }
+        return mStatementCache.insert(db, mHelper.getSchemaGeneration(), aTable, aValues, getConflictRule(aTable));
+    }
+
+    private static String getLimit(Uri aUri) {
+        if (aUri.getQuery() == null) return null;
+
+        String limit = aUri.getQueryParameter(PARAM_LIMIT);
+        if (limit == null) return null;
+        if (!isId(limit)) {
+            throw new IllegalArgumentException("invalid limit: " + limit);
+        }
+        return limit;
+    }
+
+    static boolean isUpsert(Uri aUri) {
+        return aUri.getQuery() != null && Boolean.parseBoolean(aUri.getQueryParameter(PARAM_UPSERT));
+    }
+
+    /**
+     * @return {@code _id} if the values contain it, otherwise the table's declared upsert key or
+     * primary key
+     */
+    protected String[] getUpsertKey(String aTable, ContentValues aValues) {
+        if (aValues != null && aValues.get(BaseColumns._ID) != null) {
+            return ID_KEY;
+        }
+        SQLiteTable schema = DatabaseHelper.getTableSchema(aTable);
+        if (schema == null) return null;
+        return schema.getUpsertKey() != null ? schema.getUpsertKey() : schema.getPrimaryKey();
+    }
+
+    /**
+     * Updates the row matching the key columns in {@code aValues} or inserts it if there is none,
+     * using compiled statements inside the current transaction.
+     *
+     * @return the row ID of the updated or inserted row, or -1 if nothing was written
+     */
+    protected long upsertInTransaction(String aTable, ContentValues aValues, String[] aKey) {
+        if (aKey == null || aValues == null || !hasValues(aValues, aKey)) {
+            return insertRow(aTable, aValues);
+        }
+
+        // tables with a declared primary key leave _id NULL and hand out the rowid as the row ID,
+        // so every lookup by ID goes through the rowid
+        boolean byId = ID_KEY == aKey;
+        Long id = byId ? aValues.getAsLong(BaseColumns._ID) : selectRowId(aTable, aKey, aValues);
+        if (id != null && id > 0) {
+            String[] columns = getUpdateColumns(aValues, aKey);
+            if (columns.length == 0) {
+                if (!byId || rowExists(aTable, id)) return id;
+            } else if (updateById(aTable, columns, aValues, id) > 0) {
+                return id;
+            }
+        }
+        return insertRow(aTable, aValues);
+    }
+
+    private long selectRowId(String aTable, String[] aKey, ContentValues aValues) {
+        SQLiteDatabase db = getDatabase();
+        String cacheKey = "select|" + aTable + "|" + TextUtils.join("|", aKey);
+        SQLiteStatement statement = mStatementCache.get(db, mHelper.getSchemaGeneration(), cacheKey);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("SELECT ").append(ROWID).append(" FROM ").append(aTable);
+            for (int i = 0; i < aKey.length; i++) {
+                sql.append(i == 0 ? " WHERE " : " AND ").append(aKey[i]).append("=?");
+            }
+            statement = mStatementCache.put(db, cacheKey, sql.append(" LIMIT 1").toString());
+        }
+        StatementCache.bind(statement, aValues, aKey);
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    private boolean rowExists(String aTable, long aId) {
+        ContentValues values = new ContentValues(1);
+        values.put(ROWID, aId);
+        return selectRowId(aTable, ROWID_KEY, values) > 0;
+    }
+
+    private int updateById(String aTable, String[] aColumns, ContentValues aValues, long aId) {
+        SQLiteDatabase db = getDatabase();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            ContentValues values = new ContentValues(aValues);
+            List<String> columns = Arrays.asList(aColumns);
+            for (Map.Entry<String, Object> entry : aValues.valueSet()) {
+                if (!columns.contains(entry.getKey())) values.remove(entry.getKey());
+            }
+            return db.update(aTable, values, ROWID + "=?", new String[] {Long.toString(aId)});
+        }
+        return updateStatement(db, aTable, aColumns, aValues, aId);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int updateStatement(SQLiteDatabase db, String aTable, String[] aColumns, ContentValues aValues,
+                                long aId) {
+        String cacheKey = "update|" + aTable + "|" + TextUtils.join("|", aColumns);
+        SQLiteStatement statement = mStatementCache.get(db, mHelper.getSchemaGeneration(), cacheKey);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ").append(aTable).append(" SET ");
+            for (int i = 0; i < aColumns.length; i++) {
+                sql.append(i > 0 ? "," : "").append(aColumns[i]).append("=?");
+            }
+            sql.append(" WHERE ").append(ROWID).append("=?");
+            statement = mStatementCache.put(db, cacheKey, sql.toString());
+        }
+        StatementCache.bind(statement, aValues, aColumns);
+        statement.bindLong(aColumns.length + 1, aId);
+        return statement.executeUpdateDelete();
+    }
+
+    private static boolean hasValues(ContentValues aValues, String[] aColumns) {
+        for (String column : aColumns) {
+            if (aValues.get(column) == null) return false;
+        }
+        return true;
+    }
+
+    private static String[] getUpdateColumns(ContentValues aValues, String[] aKey) {
+        List<String> columns = new ArrayList<String>(aValues.size());
+        for (String column : StatementCache.sortedColumns(aValues)) {
+            if (!BaseColumns._ID.equals(column) && !Arrays.asList(aKey).contains(column)) {
+                columns.add(column);
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
     @Override
     protected int updateInTransaction(Uri aUri, ContentValues aValues, String aSelection, String[] aSelectionArgs) {
         int result = 0;
-        UriMatch match = getTableFromUri(aUri);
-        if (match != null) {
-            if (match.join) return 0;
+        Route route = getRoute(aUri);
+        if (route != null) {
+            if (route.join != null || route.aggregate != Route.ROWS) return 0;
 
             String where = aSelection;
             String[] args = aSelectionArgs;
-            if (match.item) {
-                where = concatenateWhere(where, "_ID=?");
+            if (route.item) {
+                where = concatenateWhere(where, ROWID + "=?");
                 args = appendSelectionArgs(args, new String[] {aUri.getLastPathSegment()});
             }
 
-            result = mDb.update(match.table, aValues, where, args);
+            result = getDatabase().update(route.table, aValues, where, args);
         }
         return result;
     }
@@ -132,30 +386,118 @@ public class SimpleContentProvider extends SQLiteContentProvider {
     @Override
     protected int deleteInTransaction(Uri aUri, String aSelection, String[] aSelectionArgs) {
         int result = 0;
-        UriMatch match = getTableFromUri(aUri);
-        if (match != null) {
-            if (match.join) return 0;
+        Route route = getRoute(aUri);
+        if (route != null) {
+            if (route.join != null || route.aggregate != Route.ROWS) return 0;
 
             String where = aSelection;
             String[] args = aSelectionArgs;
-            if (match.item) {
-                where = concatenateWhere(where, "_ID=?");
+            if (route.item) {
+                where = concatenateWhere(where, ROWID + "=?");
                 args = appendSelectionArgs(args, new String[] {aUri.getLastPathSegment()});
             }
 
-            result = mDb.delete(match.table, where, args);
+            result = getDatabase().delete(route.table, where, args);
         }
 
         return result;
     }
 
+    @Override
+    protected void addNotificationUri(Uri aUri) {
+        if (aUri != null && aUri.getQuery() != null) {
+            aUri = aUri.buildUpon().clearQuery().build();
+        }
+        super.addNotificationUri(aUri);
+    }
+
     @Override
     protected void notifyChange() {
-        ContentResolver resolver = getContext().getContentResolver();
         Uri[] uris = getNotificationUris();
-        for (Uri uri : uris) {
-            if (uri == null) continue;
-            resolver.notifyChange(uri, null);
+        QueryResultCache cache = mResultCache;
+        if (cache != null) {
+            cache.invalidate(uris);
+        }
+        IdentityMap.onChange(uris);
+        mNotifier.enqueue(uris);
+    }
+
+    /**
+     * Coalesces change notifications across transactions. Each distinct Uri is notified once
+     * {@code aWindowMillis} after the last change, but no later than {@code aMaxLatencyMillis} after
+     * the first pending change. A window of 0 (the default) notifies at the end of every transaction.
+     */
+    public void setNotificationDebounce(long aWindowMillis, long aMaxLatencyMillis) {
+        mNotifier.setDebounce(aWindowMillis, aMaxLatencyMillis);
+    }
+
+    /**
+     * Holds back change notifications until the returned scope is closed, then notifies every
+     * changed Uri once. Always close the scope in a {@code finally} block.
+     */
+    public Closeable suspendNotifications() {
+        return mNotifier.suspend();
+    }
+
+    /**
+     * Sends any pending coalesced notifications now.
+     */
+    public void flushNotifications() {
+        mNotifier.flush();
+    }
+
+    /**
+     * @return the provider instance when it runs in this process, or null. Always null below API 11,
+     * where the client cannot return its provider.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static SimpleContentProvider getLocalProvider(Context aContext) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) return null;
+
+        ContentProviderClient client = aContext.getContentResolver()
+                .acquireContentProviderClient(getContentAuthority(aContext));
+        if (client == null) return null;
+        try {
+            ContentProvider provider = client.getLocalContentProvider();
+            return provider instanceof SimpleContentProvider ? (SimpleContentProvider) provider : null;
+        } finally {
+            client.release();
+        }
+    }
+
+    @Override
+    public Bundle call(String aMethod, String aArg, Bundle aExtras) {
+        if (METHOD_STREAM_INSERT.equals(aMethod)) {
+            ParcelFileDescriptor pipe = aExtras != null ? (ParcelFileDescriptor) aExtras.getParcelable(EXTRA_PIPE) : null;
+            if (aArg == null || pipe == null) {
+                throw new IllegalArgumentException("stream insert requires a table Uri and a pipe");
+            }
+
+            int count;
+            RowStreamReader reader = null;
+            try {
+                reader = new RowStreamReader(new ParcelFileDescriptor.AutoCloseInputStream(pipe));
+                count = bulkInsert(Uri.parse(aArg), reader);
+            } catch (IOException e) {
+                throw new IllegalStateException("could not read row stream", e);
+            } finally {
+                closeQuietly(reader != null ? reader : pipe);
+            }
+
+            Bundle result = new Bundle();
+            result.putInt(EXTRA_COUNT, count);
+            return result;
+        }
+        return super.call(aMethod, aArg, aExtras);
+    }
+
+    static void closeQuietly(Closeable aCloseable) {
+        if (aCloseable != null) {
+            try {
+                aCloseable.close();
+            } catch (IOException e) {
+                // ignore
+            }
         }
     }
 
@@ -164,99 +506,459 @@ public class SimpleContentProvider extends SQLiteContentProvider {
         return null;
     }
 
+    /**
+     * @return the conflict algorithm declared with {@link SQLiteTable.Builder#onConflict(int)},
+     * {@code CONFLICT_REPLACE} by default. For a table with an
+     * {@link SQLiteTable.Builder#upsert(String...) upsert key} it only applies to inserts that
+     * match no existing row.
+     */
     public int getConflictRule(String aTableName) {
-        return SQLiteDatabase.CONFLICT_REPLACE;
+        Routes routes = sRoutes;
+        if (routes == null) routes = buildRoutes();
+        Route route = routes.tables.get(aTableName);
+        return route != null ? route.conflictRule : SQLiteDatabase.CONFLICT_REPLACE;
+    }
+
+    /**
+     * Explains each distinct query and records the workload, or stops if null. For debug builds.
+     */
+    public void setQueryPlanAnalyzer(QueryPlanAnalyzer aAnalyzer) {
+        mPlanAnalyzer = aAnalyzer;
+    }
+
+    public QueryPlanAnalyzer getQueryPlanAnalyzer() {
+        return mPlanAnalyzer;
+    }
+
+    /**
+     * Caches query results in memory up to about {@code aMaxBytes}, or stops caching if 0. Cached
+     * results are dropped when a transaction that changed one of their tables commits. Writes made
+     * without the provider, e.g. with {@code execSQL}, are not seen. Requires Honeycomb.
+     */
+    public void setResultCacheSize(int aMaxBytes) {
+        if (aMaxBytes < 0) throw new IllegalArgumentException("cache size cannot be negative");
+        boolean enabled = aMaxBytes > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+        mResultCache = enabled ? new QueryResultCache(aMaxBytes) : null;
+    }
+
+    QueryResultCache getResultCache() {
+        return mResultCache;
+    }
+
+    /**
+     * @return usage of the read-only connection pool, or null if queries use the writer's connection
+     */
+    public ReadPoolStats getReadPoolStats() {
+        ReadConnectionPool pool = mHelper.getReadPool();
+        return pool != null ? pool.getStats() : null;
     }
 
     @Override
     public Cursor query(Uri aUri, String[] aProjection, String aSelection, String[] aSelectionArgs, String aSortOrder) {
-        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
-        SQLiteDatabase db = mHelper.getReadableDatabase();
+        Route route = getRoute(aUri);
+        if (route == null) return null;
+
+        // reads inside a write transaction on this thread must see its uncommitted rows
+        boolean inTransaction = inTransaction();
+        QueryResultCache cache = inTransaction ? null : mResultCache;
+        QueryResultCache.Key cacheKey = null;
+        long generation = 0;
+        if (cache != null) {
+            // a cached result needs no connection
+            cacheKey = new QueryResultCache.Key(aUri, aProjection, aSelection, aSelectionArgs, aSortOrder);
+            Cursor cached = cache.get(cacheKey);
+            if (cached != null) {
+                return setNotificationUri(cached, route, aUri);
+            }
+            generation = cache.getGeneration();
+        }
+
+        ReadConnectionPool pool = inTransaction ? null : mHelper.getReadPool();
+        if (pool == null) {
+            Cursor result = query(mHelper.getReadableDatabase(), route, aUri, aProjection, aSelection, aSelectionArgs,
+                                  aSortOrder);
+            if (result == null) return null;
+            if (cacheKey != null) {
+                result = cache.put(cacheKey, getTables(route), generation, result);
+            }
+            return setNotificationUri(result, route, aUri);
+        }
+
+        int connection = pool.acquire();
+        boolean leased = false;
+        try {
+            Cursor result = query(pool.get(connection), route, aUri, aProjection, aSelection, aSelectionArgs,
+                                  aSortOrder);
+            if (result == null) return null;
+            if (cacheKey != null) {
+                Cursor cached = cache.put(cacheKey, getTables(route), generation, result);
+                // the rows were read into memory, so the connection is done
+                if (cached != result) return setNotificationUri(cached, route, aUri);
+            }
+
+            // run the query now and keep the connection leased until the cursor is closed
+            result.getCount();
+            leased = true;
+            return setNotificationUri(pool.lease(connection, result), route, aUri);
+        } finally {
+            if (!leased) pool.release(connection);
+        }
+    }
+
+    private Cursor query(SQLiteDatabase db, Route aRoute, Uri aUri, String[] aProjection, String aSelection,
+                         String[] aSelectionArgs, String aSortOrder) {
         assert db != null;
 
-        Cursor result = null;
-        UriMatch match = getTableFromUri(aUri);
-        if (match != null) {
-            builder.setTables(match.table);
+        switch (aRoute.aggregate) {
+            case Route.ROWS:
+            case Route.SEARCH:
+                return queryRows(db, aRoute, aUri, aProjection, aSelection, aSelectionArgs, aSortOrder);
+            default:
+                return queryAggregate(db, aRoute, aUri, aSelection, aSelectionArgs, aSortOrder);
+        }
+    }
 
-            String[] args = aSelectionArgs;
-            if (match.item) {
-                String id = aUri.getLastPathSegment();
-                if (id != null) {
-                    builder.appendWhere(BaseColumns._ID + "=?");
-                    args = appendSelectionArgs(args, new String[]{id});
+    private static String[] getTables(Route aRoute) {
+        return aRoute.join != null ? aRoute.join.tables : new String[] {aRoute.table};
+    }
+
+    private Cursor setNotificationUri(Cursor aCursor, Route aRoute, Uri aUri) {
+        Context ctx = getContext();
+        assert ctx != null;
+        if (aRoute.aggregate != Route.ROWS) {
+            // row changes are notified on the table Uri and its item Uris
+            aUri = new Uri.Builder().scheme(aUri.getScheme()).authority(aUri.getAuthority())
+                    .appendPath(aUri.getPathSegments().get(0)).build();
+        }
+        aCursor.setNotificationUri(ctx.getContentResolver(), aUri);
+        return aCursor;
+    }
+
+    private Cursor queryRows(SQLiteDatabase db, Route aRoute, Uri aUri, String[] aProjection, String aSelection,
+                             String[] aSelectionArgs, String aSortOrder) {
+        String[] args = aSelectionArgs;
+        if (aRoute.item) {
+            // the _id clause comes first in the WHERE built by buildQuery
+            String[] id = new String[] {aUri.getLastPathSegment()};
+            args = args != null ? appendSelectionArgs(id, args) : id;
+        } else if (aRoute.aggregate == Route.SEARCH) {
+            // the MATCH is in the FROM clause, before the WHERE
+            String match = aUri.getQueryParameter(PARAM_QUERY);
+            if (isEmpty(match)) {
+                throw new IllegalArgumentException("search requires a " + PARAM_QUERY + " parameter");
+            }
+            String[] query = new String[] {match};
+            args = args != null ? appendSelectionArgs(query, args) : query;
+        }
+
+        // the limit is bound like the selection args so every page shares one statement
+        String limit = getLimit(aUri);
+        if (limit != null) {
+            String[] bound = new String[] {limit};
+            args = args != null ? appendSelectionArgs(args, bound) : bound;
+        }
+
+        QueryCache.Key key = new QueryCache.Key(aRoute, aProjection, aSelection, aSortOrder, limit != null);
+        String sql = mQueryCache.get(key);
+        if (sql == null) {
+            sql = buildQuery(aRoute, aProjection, aSelection, aSortOrder);
+            if (limit != null) sql += " LIMIT ?";
+            String[] projection = aProjection != null ? aProjection.clone() : null;
+            mQueryCache.put(new QueryCache.Key(aRoute, projection, aSelection, aSortOrder, limit != null), sql);
+        }
+
+        QueryPlanAnalyzer analyzer = mPlanAnalyzer;
+        if (analyzer != null) {
+            analyzer.onQuery(db, aRoute.join == null ? aRoute.table : null, sql, args, aSelection, aSortOrder);
+        }
+
+        return db.rawQuery(sql, args);
+    }
+
+    private Cursor queryAggregate(SQLiteDatabase db, Route aRoute, Uri aUri, String aSelection,
+                                  String[] aSelectionArgs, String aSortOrder) {
+        String function = null;
+        String column = null;
+        String groupBy = null;
+        if (aRoute.aggregate == Route.AGGREGATE) {
+            function = aUri.getQueryParameter(PARAM_FUNCTION);
+            column = aUri.getQueryParameter(PARAM_COLUMN);
+            groupBy = aUri.getQueryParameter(PARAM_GROUP_BY);
+            if (function == null || !AGGREGATE_FUNCTIONS.contains(function.toLowerCase(Locale.US))) {
+                throw new IllegalArgumentException("unsupported aggregate function: " + function);
+            }
+            if (column == null ? !function.equalsIgnoreCase("count") : !COLUMN_NAME.matcher(column).matches()) {
+                throw new IllegalArgumentException("invalid aggregate column: " + column);
+            }
+            if (groupBy != null) {
+                for (String group : groupBy.split(",")) {
+                    if (!COLUMN_NAME.matcher(group.trim()).matches()) {
+                        throw new IllegalArgumentException("invalid group by column: " + group);
+                    }
                 }
             }
+        }
 
-            Map<String, String> projection = PROJECTION_MAPS.get(aUri);
-            if (match.join && projection == null) {
-                projection = DatabaseHelper.buildDefaultJoinMap(JOIN_DETAILS.get(match.index), db);
-                PROJECTION_MAPS.put(JOIN_DETAILS.get(match.index).base_uri, projection);
+        // aggregates ignore the projection, their parameters take its place in the key
+        String[] parameters = new String[] {function, column, groupBy};
+        QueryCache.Key key = new QueryCache.Key(aRoute, parameters, aSelection, aSortOrder, false);
+        String sql = mQueryCache.get(key);
+        if (sql == null) {
+            String where = TextUtils.isEmpty(aSelection) ? "" : " WHERE " + aSelection;
+            switch (aRoute.aggregate) {
+                case Route.COUNT:
+                    sql = "SELECT COUNT(*) AS " + COLUMN_COUNT + " FROM " + aRoute.table + where;
+                    break;
+                case Route.EXISTS:
+                    sql = "SELECT EXISTS (SELECT 1 FROM " + aRoute.table + where + " LIMIT 1) AS " + COLUMN_EXISTS;
+                    break;
+                default:
+                    String value = function + "(" + (column != null ? column : "*") + ") AS " + COLUMN_VALUE;
+                    sql = "SELECT " + (groupBy != null ? groupBy + ", " + value : value)
+                            + " FROM " + aRoute.table + where
+                            + (groupBy != null ? " GROUP BY " + groupBy : "")
+                            + (TextUtils.isEmpty(aSortOrder) ? "" : " ORDER BY " + aSortOrder);
+                    break;
             }
-            if (projection != null) builder.setProjectionMap(projection);
+            mQueryCache.put(key, sql);
+        }
+
+        QueryPlanAnalyzer analyzer = mPlanAnalyzer;
+        if (analyzer != null) {
+            analyzer.onQuery(db, aRoute.join == null ? aRoute.table : null, sql, aSelectionArgs, aSelection, aSortOrder);
+        }
 
-            result = builder.query(db, aProjection, aSelection, args, null, null, aSortOrder);
+        return db.rawQuery(sql, aSelectionArgs);
+    }
 
-            if (result != null) {
-                Context ctx = getContext();
-                assert ctx != null;
-                result.setNotificationUri(ctx.getContentResolver(), aUri);
+    @SuppressWarnings("deprecation")
+    private String buildQuery(Route aRoute, String[] aProjection, String aSelection,
+                              String aSortOrder) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(aRoute.table);
+        if (aRoute.item) {
+            builder.appendWhere(ROWID + "=?");
+        }
+        if (aRoute.aggregate == Route.SEARCH) {
+            // offsets() lists four numbers per matched term, so count its spaces
+            String fts = aRoute.table.concat("_fts");
+            builder.setTables(String.format(
+                    "%1$s INNER JOIN (SELECT docid, (length(_offsets) - length(replace(_offsets, ' ', '')) + 1) / 4 AS %3$s"
+                            + " FROM (SELECT docid, offsets(%2$s) AS _offsets FROM %2$s WHERE %2$s MATCH ?))"
+                            + " AS _search ON (%1$s.rowid = _search.docid)", aRoute.table, fts, COLUMN_RANK));
+            if (isEmpty(aSortOrder)) {
+                aSortOrder = COLUMN_RANK + " DESC, " + aRoute.table + "." + BaseColumns._ID;
             }
         }
 
-        return result;
+        if (aRoute.projection != null) builder.setProjectionMap(aRoute.projection);
+
+        // selection args are bound at execution, the SQL text only depends on the key
+        return builder.buildQuery(aProjection, aSelection, null, null, null, aSortOrder, null);
     }
 
+    /**
+     * @return the route for a table, item or join Uri of this provider, or null. Looks up the
+     * precomputed routing table without allocating.
+     */
+    protected Route getRoute(Uri aUri) {
+        Routes routes = sRoutes;
+        if (routes == null) routes = buildRoutes();
+
+        if (!routes.authority.equals(aUri.getAuthority())) return null;
+        List<String> segments = aUri.getPathSegments();
+        switch (segments.size()) {
+            case 1:
+                return routes.tables.get(segments.get(0));
+            case 2:
+                String segment = segments.get(1);
+                if (isId(segment)) return routes.items.get(segments.get(0));
+                if (PATH_COUNT.equals(segment)) return routes.counts.get(segments.get(0));
+                if (PATH_EXISTS.equals(segment)) return routes.exists.get(segments.get(0));
+                if (PATH_AGGREGATE.equals(segment)) return routes.aggregates.get(segments.get(0));
+                if (PATH_SEARCH.equals(segment)) return routes.searches.get(segments.get(0));
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @deprecated use {@link #getRoute(Uri)}, which does not allocate
+     */
+    @Deprecated
     protected UriMatch getTableFromUri(Uri aUri) {
+        Route route = getRoute(aUri);
+        if (route == null || route.aggregate != Route.ROWS) return null;
+
         UriMatch match = new UriMatch();
+        match.table = route.table;
+        match.item = route.item;
+        match.join = route.join != null;
+        match.index = match.join ? JOIN_TABLES.indexOf(route.table) : DatabaseHelper.TABLE_NAMES.indexOf(route.table);
+        return match;
+    }
+
+    /**
+     * @deprecated see {@link #getTableFromUri(Uri)}
+     */
+    @Deprecated
+    protected class UriMatch {
+        int     index;
+        String  table;
+        boolean item;
+        boolean join;
+    }
+
+    private static boolean isId(String aSegment) {
+        int length = aSegment.length();
+        if (length == 0) return false;
+        for (int i = 0; i < length; i++) {
+            if (!Character.isDigit(aSegment.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Discards the routing table, call after registering tables, joins or projection maps.
+     */
+    static void invalidateRoutes() {
+        synchronized (ROUTE_LOCK) {
+            sRouteGeneration++;
+            sRoutes = null;
+        }
+    }
+
+    private static Map<String, String> getJoinProjection(Uri aJoinUri) {
+        Map<String, String> projection = PROJECTION_MAPS.get(aJoinUri);
+        return projection != null ? projection : JOIN_DEFAULT_MAPS.get(aJoinUri);
+    }
+
+    /**
+     * Rebuilds the default join projection maps from the tables' actual columns.
+     */
+    static void refreshJoinProjections(SQLiteDatabase aDb) {
+        boolean changed = false;
+        for (Join join : JOIN_DETAILS) {
+            Map<String, String> projection = DatabaseHelper.buildDefaultJoinMap(join, aDb);
+            if (!projection.equals(JOIN_DEFAULT_MAPS.put(join.base_uri, projection))) {
+                changed = true;
+            }
+        }
+        if (changed) invalidateRoutes();
+    }
 
-        // check for table match
-        match.index = URI_MATCHER.match(aUri);
+    private static Routes buildRoutes() {
+        int generation;
+        synchronized (ROUTE_LOCK) {
+            if (sRoutes != null) return sRoutes;
+            generation = sRouteGeneration;
+        }
 
-        // check for item match
-        if (match.index == UriMatcher.NO_MATCH) {
-            match.index = URI_ID_MATCHER.match(aUri);
-            if (match.index != UriMatcher.NO_MATCH) {
-                match.item = true;
+        Routes routes = new Routes(sContentAuthority != null ? sContentAuthority : DEFAULT_AUTHORITY);
+        for (Map.Entry<Class, Uri> entry : DatabaseHelper.CONTENT_URI_MAP.entrySet()) {
+            String table = DatabaseHelper.TABLE_MAP.get(entry.getKey());
+            SQLiteTable schema = DatabaseHelper.getTableSchema(table);
+            int conflictRule = schema != null ? schema.getConflictRule() : SQLiteDatabase.CONFLICT_REPLACE;
+            String[] upsertKey = schema != null ? schema.getUpsertKey() : null;
+            Map<String, String> projection = PROJECTION_MAPS.get(entry.getValue());
+
+            routes.tables.put(table, new Route(table, false, null, conflictRule, upsertKey, projection));
+            routes.items.put(table, new Route(table, true, null, conflictRule, upsertKey, projection));
+            routes.putAggregates(table, table, null);
+            if (schema != null && schema.getFullTextColumns() != null) {
+                routes.searches.put(table, new Route(table, null, Route.SEARCH));
             }
         }
+        for (int i = 0; i < JOIN_DETAILS.size(); i++) {
+            Join join = JOIN_DETAILS.get(i);
+            String path = join.base_uri.getLastPathSegment();
+            routes.tables.put(path, new Route(JOIN_TABLES.get(i), false, join, SQLiteDatabase.CONFLICT_NONE,
+                                              null, getJoinProjection(join.base_uri)));
+            routes.putAggregates(path, JOIN_TABLES.get(i), join);
+        }
 
-        if (match.index != UriMatcher.NO_MATCH) {
-            match.table = DatabaseHelper.TABLE_NAMES.get(match.index);
-            return match;
+        synchronized (ROUTE_LOCK) {
+            // routes built while a registration changed may miss it, so they only serve this call
+            if (generation == sRouteGeneration) {
+                if (sRoutes != null) return sRoutes;
+                sRoutes = routes;
+            }
         }
+        return routes;
+    }
+
+    private static final class Routes {
+        final String             authority;
+        final Map<String, Route> tables = new HashMap<String, Route>();
+        final Map<String, Route> items  = new HashMap<String, Route>();
 
-        // check for join match
-        match.index = URI_JOIN_MATCHER.match(aUri);
-        if (match.index != UriMatcher.NO_MATCH) {
-            match.table = JOIN_TABLES.get(match.index);
-            match.join = true;
-            return match;
+        final Map<String, Route> counts     = new HashMap<String, Route>();
+        final Map<String, Route> exists     = new HashMap<String, Route>();
+        final Map<String, Route> aggregates = new HashMap<String, Route>();
+        final Map<String, Route> searches   = new HashMap<String, Route>();
+
+        Routes(String aAuthority) {
+            authority = aAuthority;
         }
 
-        return null;
+        void putAggregates(String aPath, String aTable, Join aJoin) {
+            counts.put(aPath, new Route(aTable, aJoin, Route.COUNT));
+            exists.put(aPath, new Route(aTable, aJoin, Route.EXISTS));
+            aggregates.put(aPath, new Route(aTable, aJoin, Route.AGGREGATE));
+        }
     }
 
-    protected class UriMatch {
-        int     index;
-        String  table;
-        boolean item;
-        boolean join;
+    /**
+     * Where a content Uri points: a table, one row of a table, a join, an aggregate of a table
+     * or join, or a full-text search of a table. Shared between calls.
+     */
+    protected static final class Route {
+        static final int ROWS      = 0;
+        static final int COUNT     = 1;
+        static final int EXISTS    = 2;
+        static final int AGGREGATE = 3;
+        static final int SEARCH    = 4;
+
+        final String              table;
+        final boolean             item;
+        final Join                join;
+        final int                 conflictRule;
+        final String[]            upsertKey;
+        final Map<String, String> projection;
+        final int                 aggregate;
+
+        Route(String aTable, Join aJoin, int aAggregate) {
+            table = aTable;
+            item = false;
+            join = aJoin;
+            conflictRule = SQLiteDatabase.CONFLICT_NONE;
+            upsertKey = null;
+            projection = null;
+            aggregate = aAggregate;
+        }
+
+        Route(String aTable, boolean aItem, Join aJoin, int aConflictRule, String[] aUpsertKey,
+              Map<String, String> aProjection) {
+            table = aTable;
+            item = aItem;
+            join = aJoin;
+            conflictRule = aConflictRule;
+            upsertKey = aUpsertKey;
+            projection = aProjection;
+            aggregate = ROWS;
+        }
     }
 
     static class Join {
-        Uri base_uri;
-        String table_1;
-        String column_1;
-        String table_2;
-        String column_2;
+        final Uri                 base_uri;
+        final String[]            tables;
+        final Map<String, String> aliases;
 
-        Join(Uri aBaseUri, String aTable1, String aColumn1, String aTable2, String aColumn2) {
+        Join(Uri aBaseUri, String[] aTables, Map<String, String> aAliases) {
             base_uri = aBaseUri;
-            table_1 = aTable1;
-            column_1 = aColumn1;
-            table_2 = aTable2;
-            column_2 = aColumn2;
+            tables = aTables;
+            aliases = aAliases;
         }
     }
 
@@ -288,8 +990,25 @@ public class SimpleContentProvider extends SQLiteContentProvider {
         return result;
     }
 
+    /**
+     * Closes all compiled insert statements. Call after altering the schema outside of
+     * {@link DatabaseHelper#onCreate} or {@link DatabaseHelper#onUpgrade}.
+     */
+    public void clearStatementCache() {
+        mStatementCache.clear();
+    }
+
+    QueryCache getQueryCache() {
+        return mQueryCache;
+    }
+
     @Override
     public void shutdown() {
+        mNotifier.shutdown();
+        mStatementCache.clear();
+        mQueryCache.clear();
+        QueryResultCache cache = mResultCache;
+        if (cache != null) cache.clear();
         mHelper.close();
     }
 }
@@ -0,0 +1,137 @@
+package io.vokal.db;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.*;
+
+/**
+ * Bounded LRU cache of compiled {@link SQLiteStatement}s used by the provider write path.
+ * Statements are keyed by table, conflict rule and column set so repeated inserts only have to
+ * bind values instead of parsing and compiling the SQL again. Evicted statements are closed.
+ * Statements are only bound inside write transactions, which the database runs one at a time.
+ */
+class StatementCache {
+
+    static final int DEFAULT_MAX_SIZE = 32;
+
+    private static final String[] CONFLICT_VALUES = new String[]
+            {"", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE "};
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+    private final int mMaxSize;
+
+    private SQLiteDatabase mDatabase;
+    private int mSchemaGeneration;
+
+    StatementCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    StatementCache(int aMaxSize) {
+        mMaxSize = aMaxSize;
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(aMaxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> aEldest) {
+                if (size() > mMaxSize) {
+                    aEldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Inserts a row using a cached compiled statement for this table, column set and conflict rule.
+     *
+     * @return the row ID of the newly inserted row, or -1 if nothing was inserted
+     */
+    long insert(SQLiteDatabase aDb, int aSchemaGeneration, String aTable, ContentValues aValues, int aConflictRule) {
+        String[] columns = sortedColumns(aValues);
+
+        StringBuilder key = new StringBuilder(aTable).append('|').append(aConflictRule);
+        for (String col : columns) {
+            key.append('|').append(col);
+        }
+
+        SQLiteStatement statement = get(aDb, aSchemaGeneration, key.toString());
+        if (statement == null) {
+            statement = put(aDb, key.toString(), buildInsertSQL(aTable, columns, aConflictRule));
+        }
+        bind(statement, aValues, columns);
+        return statement.executeInsert();
+    }
+
+    /**
+     * @return the cached statement for {@code aKey}, or null. Discards all statements if the
+     * database handle or schema changed since they were compiled.
+     */
+    synchronized SQLiteStatement get(SQLiteDatabase aDb, int aSchemaGeneration, String aKey) {
+        // statements belong to a single database handle and schema
+        if (aDb != mDatabase || aSchemaGeneration != mSchemaGeneration) {
+            clear();
+            mDatabase = aDb;
+            mSchemaGeneration = aSchemaGeneration;
+            return null;
+        }
+        return mStatements.get(aKey);
+    }
+
+    /**
+     * Compiles and caches a statement, call after {@link #get} returned null.
+     */
+    synchronized SQLiteStatement put(SQLiteDatabase aDb, String aKey, String aSQL) {
+        SQLiteStatement statement = aDb.compileStatement(aSQL);
+        mStatements.put(aKey, statement);
+        return statement;
+    }
+
+    synchronized int size() {
+        return mStatements.size();
+    }
+
+    synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mDatabase = null;
+    }
+
+    /**
+     * Binds {@code aColumns} of {@code aValues} to the first parameters of the statement.
+     */
+    static void bind(SQLiteStatement aStatement, ContentValues aValues, String[] aColumns) {
+        aStatement.clearBindings();
+        for (int i = 0; i < aColumns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(aStatement, i + 1, aValues.get(aColumns[i]));
+        }
+    }
+
+    static String buildInsertSQL(String aTable, String[] aColumns, int aConflictRule) {
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("INSERT").append(CONFLICT_VALUES[aConflictRule]).append(" INTO ").append(aTable).append('(');
+        for (int i = 0; i < aColumns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(aColumns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < aColumns.length; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        return sql.append(')').toString();
+    }
+
+    static String[] sortedColumns(ContentValues aValues) {
+        // keySet() needs Honeycomb, valueSet() is available on every version
+        String[] columns = new String[aValues.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : aValues.valueSet()) {
+            columns[i++] = entry.getKey();
+        }
+        Arrays.sort(columns);
+        return columns;
+    }
+}
@@ -0,0 +1,275 @@
+package io.vokal.db;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Journal mode and PRAGMA settings applied by {@link DatabaseHelper} whenever it opens the
+ * database. Settings that are not set keep the SQLite defaults, {@link #DEFAULT} changes nothing.
+ * <p>
+ * Write-ahead logging needs API 11 and lets readers run alongside a write transaction.
+ * {@code page_size} only takes effect before the database file is created (API 16 and up) or after
+ * a {@code VACUUM}.
+ * <p>
+ * The other settings are per connection. They are applied to the write connection and to every
+ * connection of the read pool, see {@link Builder#readConnections(int)}. With write-ahead logging
+ * on API 16 and up, the platform may also run queries on extra connections of its own that cannot
+ * be configured, so enable the read pool when readers depend on these settings.
+ */
+public class TuningProfile {
+
+    public static final TuningProfile DEFAULT = new Builder().build();
+
+    public static final String SYNCHRONOUS_OFF    = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL   = "FULL";
+
+    public static final String TEMP_STORE_DEFAULT = "DEFAULT";
+    public static final String TEMP_STORE_FILE    = "FILE";
+    public static final String TEMP_STORE_MEMORY  = "MEMORY";
+
+    static final String KEY_WAL                = "database_wal";
+    static final String KEY_SYNCHRONOUS        = "database_synchronous";
+    static final String KEY_PAGE_SIZE          = "database_page_size";
+    static final String KEY_CACHE_SIZE         = "database_cache_size";
+    static final String KEY_MMAP_SIZE          = "database_mmap_size";
+    static final String KEY_TEMP_STORE         = "database_temp_store";
+    static final String KEY_JOURNAL_SIZE_LIMIT = "database_journal_size_limit";
+    static final String KEY_READ_CONNECTIONS   = "database_read_connections";
+
+    private static final List<String> SYNCHRONOUS_MODES =
+            Arrays.asList(SYNCHRONOUS_OFF, SYNCHRONOUS_NORMAL, SYNCHRONOUS_FULL);
+    private static final List<String> TEMP_STORE_MODES =
+            Arrays.asList(TEMP_STORE_DEFAULT, TEMP_STORE_FILE, TEMP_STORE_MEMORY);
+
+    private static final int UNSET = Integer.MIN_VALUE;
+
+    private final boolean mWriteAheadLogging;
+    private final String  mSynchronous;
+    private final int     mPageSize;
+    private final int     mCacheSize;
+    private final long    mMmapSize;
+    private final String  mTempStore;
+    private final long    mJournalSizeLimit;
+    private final int     mReadConnections;
+
+    private TuningProfile(Builder aBuilder) {
+        mWriteAheadLogging = aBuilder.mWriteAheadLogging;
+        mSynchronous = aBuilder.mSynchronous;
+        mPageSize = aBuilder.mPageSize;
+        mCacheSize = aBuilder.mCacheSize;
+        mMmapSize = aBuilder.mMmapSize;
+        mTempStore = aBuilder.mTempStore;
+        mJournalSizeLimit = aBuilder.mJournalSizeLimit;
+        mReadConnections = aBuilder.mReadConnections;
+    }
+
+    /**
+     * Reads a profile from provider {@code <meta-data>}: {@code database_wal} (boolean),
+     * {@code database_synchronous} and {@code database_temp_store} (names), {@code database_page_size},
+     * {@code database_cache_size}, {@code database_mmap_size}, {@code database_journal_size_limit} and
+     * {@code database_read_connections} (integers).
+     */
+    static TuningProfile fromMetaData(@Nullable Bundle aMetaData) {
+        if (aMetaData == null) return DEFAULT;
+
+        Builder builder = new Builder();
+        builder.writeAheadLogging(aMetaData.getBoolean(KEY_WAL, false));
+        if (aMetaData.containsKey(KEY_SYNCHRONOUS)) {
+            builder.synchronous(aMetaData.getString(KEY_SYNCHRONOUS));
+        }
+        if (aMetaData.containsKey(KEY_PAGE_SIZE)) {
+            builder.pageSize(aMetaData.getInt(KEY_PAGE_SIZE));
+        }
+        if (aMetaData.containsKey(KEY_CACHE_SIZE)) {
+            builder.cacheSize(aMetaData.getInt(KEY_CACHE_SIZE));
+        }
+        if (aMetaData.containsKey(KEY_MMAP_SIZE)) {
+            builder.mmapSize(aMetaData.getInt(KEY_MMAP_SIZE));
+        }
+        if (aMetaData.containsKey(KEY_TEMP_STORE)) {
+            builder.tempStore(aMetaData.getString(KEY_TEMP_STORE));
+        }
+        if (aMetaData.containsKey(KEY_JOURNAL_SIZE_LIMIT)) {
+            builder.journalSizeLimit(aMetaData.getInt(KEY_JOURNAL_SIZE_LIMIT));
+        }
+        if (aMetaData.containsKey(KEY_READ_CONNECTIONS)) {
+            builder.readConnections(aMetaData.getInt(KEY_READ_CONNECTIONS));
+        }
+        return builder.build();
+    }
+
+    public boolean isWriteAheadLogging() {
+        return mWriteAheadLogging;
+    }
+
+    public @Nullable String getSynchronous() {
+        return mSynchronous;
+    }
+
+    public @Nullable String getTempStore() {
+        return mTempStore;
+    }
+
+    public int getReadConnections() {
+        return mReadConnections;
+    }
+
+    /**
+     * Applies settings that must be in place before the schema is created, call from
+     * {@code onConfigure} where available.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    void configure(SQLiteDatabase aDb) {
+        if (mPageSize != UNSET) {
+            pragma(aDb, "page_size", mPageSize);
+        }
+        if (mWriteAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !aDb.isReadOnly()) {
+            aDb.enableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * Applies the per-connection settings, call from {@code onOpen} and for each pooled read
+     * connection.
+     */
+    void apply(SQLiteDatabase aDb) {
+        if (mSynchronous != null) {
+            pragma(aDb, "synchronous", mSynchronous);
+        }
+        if (mCacheSize != UNSET) {
+            pragma(aDb, "cache_size", mCacheSize);
+        }
+        if (mMmapSize != UNSET) {
+            pragma(aDb, "mmap_size", mMmapSize);
+        }
+        if (mTempStore != null) {
+            pragma(aDb, "temp_store", mTempStore);
+        }
+        if (mJournalSizeLimit != UNSET) {
+            pragma(aDb, "journal_size_limit", mJournalSizeLimit);
+        }
+    }
+
+    /*
+     * some pragmas return the new value as a row, which execSQL rejects on newer platforms
+     */
+    private static void pragma(SQLiteDatabase aDb, String aName, Object aValue) {
+        Cursor c = aDb.rawQuery("PRAGMA " + aName + "=" + aValue, null);
+        if (c != null) {
+            c.moveToFirst();
+            c.close();
+        }
+    }
+
+    public static class Builder {
+
+        private boolean mWriteAheadLogging;
+        private String  mSynchronous;
+        private int     mPageSize         = UNSET;
+        private int     mCacheSize        = UNSET;
+        private long    mMmapSize         = UNSET;
+        private String  mTempStore;
+        private long    mJournalSizeLimit = UNSET;
+        private int     mReadConnections;
+
+        public Builder() {}
+
+        public Builder(TuningProfile aProfile) {
+            mWriteAheadLogging = aProfile.mWriteAheadLogging;
+            mSynchronous = aProfile.mSynchronous;
+            mPageSize = aProfile.mPageSize;
+            mCacheSize = aProfile.mCacheSize;
+            mMmapSize = aProfile.mMmapSize;
+            mTempStore = aProfile.mTempStore;
+            mJournalSizeLimit = aProfile.mJournalSizeLimit;
+            mReadConnections = aProfile.mReadConnections;
+        }
+
+        public Builder writeAheadLogging(boolean aEnabled) {
+            mWriteAheadLogging = aEnabled;
+            return this;
+        }
+
+        /**
+         * @param aMode {@link #SYNCHRONOUS_OFF}, {@link #SYNCHRONOUS_NORMAL} or {@link #SYNCHRONOUS_FULL}
+         */
+        public Builder synchronous(String aMode) {
+            mSynchronous = checkMode(aMode, SYNCHRONOUS_MODES, "synchronous");
+            return this;
+        }
+
+        /**
+         * @param aBytes a power of two between 512 and 65536
+         */
+        public Builder pageSize(int aBytes) {
+            if (aBytes < 512 || aBytes > 65536 || Integer.bitCount(aBytes) != 1)
+                throw new IllegalArgumentException("page_size must be a power of two between 512 and 65536");
+            mPageSize = aBytes;
+            return this;
+        }
+
+        /**
+         * @param aSize pages if positive, kibibytes if negative
+         */
+        public Builder cacheSize(int aSize) {
+            mCacheSize = aSize;
+            return this;
+        }
+
+        /**
+         * @param aBytes bytes of the file to memory map, 0 disables memory mapped I/O
+         */
+        public Builder mmapSize(long aBytes) {
+            if (aBytes < 0) throw new IllegalArgumentException("mmap_size cannot be negative");
+            mMmapSize = aBytes;
+            return this;
+        }
+
+        /**
+         * @param aMode {@link #TEMP_STORE_DEFAULT}, {@link #TEMP_STORE_FILE} or {@link #TEMP_STORE_MEMORY}
+         */
+        public Builder tempStore(String aMode) {
+            mTempStore = checkMode(aMode, TEMP_STORE_MODES, "temp_store");
+            return this;
+        }
+
+        /**
+         * @param aBytes bytes a journal or WAL file is truncated to after a transaction, -1 for no limit
+         */
+        public Builder journalSizeLimit(long aBytes) {
+            if (aBytes < -1) throw new IllegalArgumentException("journal_size_limit must be -1 or more");
+            mJournalSizeLimit = aBytes;
+            return this;
+        }
+
+        /**
+         * Queries use a pool of {@code aCount} read-only connections instead of the writer's
+         * connection. Only used together with write-ahead logging, 0 (the default) disables the pool.
+         */
+        public Builder readConnections(int aCount) {
+            if (aCount < 0) throw new IllegalArgumentException("read connections cannot be negative");
+            mReadConnections = aCount;
+            return this;
+        }
+
+        public TuningProfile build() {
+            return new TuningProfile(this);
+        }
+
+        private static String checkMode(String aMode, List<String> aModes, String aPragma) {
+            String mode = aMode != null ? aMode.toUpperCase(Locale.US) : null;
+            if (!aModes.contains(mode))
+                throw new IllegalArgumentException("unknown " + aPragma + " mode " + aMode);
+            return mode;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package io.vokal.db;
+
+import android.content.*;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous single-writer queue for model saves and deletes from any thread. Writes are gathered
+ * into group commits of up to {@code maxBatch} operations, waiting at most {@code maxLatency}
+ * milliseconds after the first queued write, and applied as one provider batch: one transaction,
+ * one sync and one set of change notifications per group. Saves use the upsert path of
+ * {@link DatabaseHelper#save(Context, DataModelInterface)} and run in the order they were queued.
+ * <p>
+ * Model values are read when the write is queued. If a group fails and the provider runs in this
+ * process with {@link SQLiteContentProvider.BatchMode#STRICT}, its writes are retried one by one so
+ * only the failing write reports the error. Otherwise part of the group may have been committed
+ * before the failure, so every write of the group reports it.
+ */
+public class WriteQueue {
+
+    private static final String TAG = WriteQueue.class.getSimpleName();
+
+    public static final int  DEFAULT_MAX_BATCH   = 200;
+    public static final long DEFAULT_MAX_LATENCY = 20;
+
+    private final Context                 mContext;
+    private final int                     mMaxBatch;
+    private final long                    mMaxLatency;
+    private final BlockingQueue<Write<?>> mQueue = new LinkedBlockingQueue<Write<?>>();
+    private final Thread                  mWriter;
+    private final Object                  mLock  = new Object();
+
+    private volatile boolean mShutdown; // written under mLock
+
+    public WriteQueue(Context aContext) {
+        this(aContext, DEFAULT_MAX_BATCH, DEFAULT_MAX_LATENCY);
+    }
+
+    public WriteQueue(Context aContext, int aMaxBatch, long aMaxLatencyMillis) {
+        if (aMaxBatch < 1) throw new IllegalArgumentException("batch size must be at least 1");
+        if (aMaxLatencyMillis < 0) throw new IllegalArgumentException("latency cannot be negative");
+        mContext = aContext;
+        mMaxBatch = aMaxBatch;
+        mMaxLatency = aMaxLatencyMillis;
+
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Queues an update-or-insert of the model.
+     *
+     * @return the item Uri of the saved row. {@link AbstractDataModel}s also receive their id.
+     */
+    public Future<Uri> save(DataModelInterface aModel) {
+        Uri uri = DatabaseHelper.getUpsertUri(aModel.getClass());
+        if (uri == null) throw new IllegalStateException("call registerModel() first for table " + aModel.getClass());
+
+        ContentValues values = new ContentValues();
+        DatabaseHelper.populateValues(aModel, values);
+        return enqueue(new Write<Uri>(ContentProviderOperation.newInsert(uri).withValues(values).build(), aModel));
+    }
+
+    /**
+     * Queues a delete of the model's row.
+     *
+     * @return the number of rows deleted
+     */
+    public Future<Integer> delete(AbstractDataModel aModel) {
+        Uri uri = aModel.getContentItemUri();
+        if (uri == null) throw new IllegalArgumentException("model has no id to delete");
+        return delete(uri, null, null);
+    }
+
+    public Future<Integer> delete(Uri aUri, String aSelection, String[] aSelectionArgs) {
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newDelete(aUri);
+        if (aSelection != null) builder.withSelection(aSelection, aSelectionArgs);
+        return enqueue(new Write<Integer>(builder.build(), null));
+    }
+
+    /**
+     * Blocks until all writes queued before this call are committed.
+     */
+    public void flush() throws InterruptedException {
+        Write<Void> marker = new Write<Void>(null, null);
+        enqueue(marker);
+        try {
+            marker.get();
+        } catch (ExecutionException e) {
+            // markers do not fail
+        }
+    }
+
+    /**
+     * Commits the queued writes and stops the writer thread. Writes queued afterwards are rejected.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+        }
+        mWriter.interrupt();
+    }
+
+    public int getPendingCount() {
+        return mQueue.size();
+    }
+
+    private <T> Future<T> enqueue(Write<T> aWrite) {
+        // the writer stops once it sees the flag and an empty queue, so nothing may be added after
+        synchronized (mLock) {
+            if (mShutdown) throw new RejectedExecutionException("write queue is shut down");
+            mQueue.add(aWrite);
+        }
+        return aWrite;
+    }
+
+    private void drain() {
+        try {
+            drainUntilShutdown();
+        } finally {
+            // reached with writes left only if the writer died, e.g. on an Error
+            synchronized (mLock) {
+                mShutdown = true;
+            }
+            Write<?> late;
+            while ((late = mQueue.poll()) != null) {
+                late.fail(new RejectedExecutionException("write queue is shut down"));
+            }
+        }
+    }
+
+    private void drainUntilShutdown() {
+        List<Write<?>> group = new ArrayList<Write<?>>(mMaxBatch);
+        while (!mShutdown || !mQueue.isEmpty()) {
+            try {
+                Write<?> first = mShutdown ? mQueue.poll() : mQueue.take();
+                if (first == null) break;
+                group.add(first);
+
+                long deadline = SystemClock.uptimeMillis() + mMaxLatency;
+                while (group.size() < mMaxBatch) {
+                    long wait = deadline - SystemClock.uptimeMillis();
+                    Write<?> next = wait > 0 && !mShutdown ? mQueue.poll(wait, TimeUnit.MILLISECONDS) : mQueue.poll();
+                    if (next == null) break;
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // shutdown requested, commit what is queued
+            }
+
+            if (!group.isEmpty()) {
+                commit(group);
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(List<Write<?>> aGroup) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(aGroup.size());
+        List<Write<?>> writes = new ArrayList<Write<?>>(aGroup.size());
+        for (Write<?> write : aGroup) {
+            if (write.mOperation == null) continue;
+            operations.add(write.mOperation);
+            writes.add(write);
+        }
+
+        if (!operations.isEmpty()) {
+            try {
+                complete(writes, apply(operations));
+            } catch (Exception e) {
+                if (writes.size() == 1) {
+                    writes.get(0).fail(e);
+                } else if (!isStrict()) {
+                    for (Write<?> write : writes) {
+                        write.fail(e);
+                    }
+                } else {
+                    Log.w(TAG, "group commit of " + writes.size() + " writes failed, retrying one by one", e);
+                    for (Write<?> write : writes) {
+                        ArrayList<ContentProviderOperation> single = new ArrayList<ContentProviderOperation>(1);
+                        single.add(write.mOperation);
+                        try {
+                            complete(write, apply(single)[0]);
+                        } catch (Exception error) {
+                            write.fail(error);
+                        }
+                    }
+                }
+            }
+        }
+
+        // flush markers complete after every write queued before them
+        for (Write<?> write : aGroup) {
+            if (write.mOperation == null) write.set(null);
+        }
+    }
+
+    /**
+     * @return true if a failed batch committed none of its operations
+     */
+    private boolean isStrict() {
+        SimpleContentProvider provider = SimpleContentProvider.getLocalProvider(mContext);
+        return provider != null && provider.getBatchMode() == SQLiteContentProvider.BatchMode.STRICT;
+    }
+
+    private ContentProviderResult[] apply(ArrayList<ContentProviderOperation> aOperations)
+            throws RemoteException, OperationApplicationException {
+        return mContext.getContentResolver()
+                .applyBatch(SimpleContentProvider.getContentAuthority(mContext), aOperations);
+    }
+
+    private static void complete(List<Write<?>> aWrites, ContentProviderResult[] aResults) {
+        for (int i = 0; i < aWrites.size(); i++) {
+            complete(aWrites.get(i), aResults[i]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void complete(Write<?> aWrite, ContentProviderResult aResult) {
+        if (aWrite.mModel != null) {
+            if (aResult.uri != null && aWrite.mModel instanceof AbstractDataModel) {
+                ((AbstractDataModel) aWrite.mModel)._id = ContentUris.parseId(aResult.uri);
+            }
+            ((Write<Uri>) aWrite).set(aResult.uri);
+        } else {
+            ((Write<Integer>) aWrite).set(aResult.count);
+        }
+    }
+
+    private static class Write<T> implements Future<T> {
+
+        final ContentProviderOperation mOperation;
+        final DataModelInterface       mModel;
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private T         mResult;
+        private Throwable mError;
+
+        Write(ContentProviderOperation aOperation, DataModelInterface aModel) {
+            mOperation = aOperation;
+            mModel = aModel;
+        }
+
+        void set(T aResult) {
+            mResult = aResult;
+            mDone.countDown();
+        }
+
+        void fail(Throwable aError) {
+            mError = aError;
+            mDone.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean aMayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        @Override
+        public T get(long aTimeout, TimeUnit aUnit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(aTimeout, aUnit)) throw new TimeoutException();
+            return result();
+        }
+
+        private T result() throws ExecutionException {
+            if (mError != null) throw new ExecutionException(mError);
+            return mResult;
+        }
+    }
+}
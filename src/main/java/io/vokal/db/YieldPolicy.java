@@ -0,0 +1,62 @@
+package io.vokal.db;
+
+/**
+ * Decides how long a bulk write may hold the database lock before offering it to other threads.
+ * A yield is attempted after {@code maxRows} rows or {@code maxMillis} milliseconds, whichever
+ * comes first. A value of 0 disables that limit.
+ */
+public class YieldPolicy {
+
+    /** Yields every 100 rows or 100ms, keeping the previous 4s sleep and 500 operation limit. */
+    public static final YieldPolicy DEFAULT = new YieldPolicy(100, 100, 4000, 500);
+
+    private final int  mMaxRows;
+    private final long mMaxMillis;
+    private final long mSleepAfterYield;
+    private final int  mMaxOperationsPerYieldPoint;
+
+    public YieldPolicy(int aMaxRows, long aMaxMillis) {
+        this(aMaxRows, aMaxMillis, 0, 0);
+    }
+
+    /**
+     * @param aMaxRows rows written before a yield is attempted, 0 for no row limit
+     * @param aMaxMillis milliseconds of holding the write lock before a yield is attempted, 0 for no time limit
+     * @param aSleepAfterYield milliseconds to sleep after the lock was actually yielded
+     * @param aMaxOperationsPerYieldPoint operations {@code applyBatch} accepts between yield-allowed
+     *                                    operations before failing, 0 for no limit
+     */
+    public YieldPolicy(int aMaxRows, long aMaxMillis, long aSleepAfterYield, int aMaxOperationsPerYieldPoint) {
+        if (aMaxRows < 0 || aMaxMillis < 0 || aSleepAfterYield < 0 || aMaxOperationsPerYieldPoint < 0) {
+            throw new IllegalArgumentException("yield policy limits cannot be negative");
+        }
+        mMaxRows = aMaxRows;
+        mMaxMillis = aMaxMillis;
+        mSleepAfterYield = aSleepAfterYield;
+        mMaxOperationsPerYieldPoint = aMaxOperationsPerYieldPoint;
+    }
+
+    public int getMaxRows() {
+        return mMaxRows;
+    }
+
+    public long getMaxMillis() {
+        return mMaxMillis;
+    }
+
+    public long getSleepAfterYield() {
+        return mSleepAfterYield;
+    }
+
+    public int getMaxOperationsPerYieldPoint() {
+        return mMaxOperationsPerYieldPoint;
+    }
+
+    /**
+     * @return true if the rows written or time spent since the last yield exhaust this policy
+     */
+    public boolean shouldYield(int aRowsSinceYield, long aMillisSinceYield) {
+        return (mMaxRows > 0 && aRowsSinceYield >= mMaxRows)
+                || (mMaxMillis > 0 && aMillisSinceYield >= mMaxMillis);
+    }
+}
@@ -14,7 +14,8 @@ public class CursorGetter {
     private SimpleArrayMap<String, Integer> mMap = new SimpleArrayMap<>(12);
     private Cursor mCursor;
     private String mTable;
-    
+    private boolean mStrict;
+
     public CursorGetter() {
         this(null, null);
     }
@@ -44,44 +45,52 @@ public class CursorGetter {
         return this;
     }
 
+    /**
+     * Throws when a value is read from a column missing from the cursor, instead of reading column -1.
+     */
+    public CursorGetter setStrict(boolean aStrict) {
+        mStrict = aStrict;
+        return this;
+    }
+
     public boolean hasColumn(String aColumn) {
         return getColumnIndex(aColumn) != -1;
     }
 
     public boolean getBoolean(String aColumn) {
-        return mCursor.getInt(getColumnIndex(aColumn)) != 0;
+        return mCursor.getInt(getValueIndex(aColumn)) != 0;
     }
 
     public String getString(String aColumn) {
-        return mCursor.getString(getColumnIndex(aColumn));
+        return mCursor.getString(getValueIndex(aColumn));
     }
 
     public short getShort(String aColumn) {
-        return mCursor.getShort(getColumnIndex(aColumn));
+        return mCursor.getShort(getValueIndex(aColumn));
     }
 
     public int getInt(String aColumn) {
-        return mCursor.getInt(getColumnIndex(aColumn));
+        return mCursor.getInt(getValueIndex(aColumn));
     }
 
     public long getLong(String aColumn) {
-        return mCursor.getLong(getColumnIndex(aColumn));
+        return mCursor.getLong(getValueIndex(aColumn));
     }
 
     public float getFloat(String aColumn) {
-        return mCursor.getFloat(getColumnIndex(aColumn));
+        return mCursor.getFloat(getValueIndex(aColumn));
     }
 
     public double getDouble(String aColumn) {
-        return mCursor.getDouble(getColumnIndex(aColumn));
+        return mCursor.getDouble(getValueIndex(aColumn));
     }
 
     public byte[] getBlob(String aColumn) {
-        return mCursor.getBlob(getColumnIndex(aColumn));
+        return mCursor.getBlob(getValueIndex(aColumn));
     }
 
     public Date getDate(String aColumn) {
-        int i = getColumnIndex(aColumn);
+        int i = getValueIndex(aColumn);
         if (i >= 0 && !mCursor.isNull(i)) {
             return new Date(mCursor.getLong(i));
         }
@@ -89,7 +98,16 @@ public class CursorGetter {
     }
 
     public boolean isNull(String aColumn) {
-        return mCursor.isNull(getColumnIndex(aColumn));
+        return mCursor.isNull(getValueIndex(aColumn));
+    }
+
+    private int getValueIndex(String aColumn) {
+        int i = getColumnIndex(aColumn);
+        if (i == -1 && mStrict) {
+            throw new IllegalStateException("column '" + (mTable != null ? mTable.concat(aColumn) : aColumn)
+                                                    + "' is not in the projection");
+        }
+        return i;
     }
 
     private int getColumnIndex(String aColumn) {
@@ -17,11 +17,14 @@ package io.vokal.db.util;
 
 
 import android.database.Cursor;
+import android.provider.BaseColumns;
 import android.util.SparseArray;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import io.vokal.db.IdentityMap;
+
 /**
  * A cursor-backed type that can return an object for each row of the cursor. This class is most
  * useful when:
@@ -38,6 +41,12 @@ public class ObjectCursor<T> extends CursorWrapper {
     /** An object that knows how to construct {@link T} objects using cursors. */
     private final CursorCreator<T> mFactory;
 
+    /** Shares models with other results of the same table, see {@link IdentityMap}. */
+    private IdentityMap mIdentityMap;
+    private long        mGeneration;
+    private Object      mSignature;
+    private int         mIdIndex = -1;
+
     /**
      * Creates a new object cursor.
      * @param cursor the underlying cursor this wraps.
@@ -52,6 +61,31 @@ public class ObjectCursor<T> extends CursorWrapper {
         mFactory = factory;
     }
 
+    /**
+     * @see CursorGetter#setStrict(boolean)
+     */
+    void setStrictColumns(boolean aStrict) {
+        mGetter.setStrict(aStrict);
+    }
+
+    /**
+     * Maps rows to the models already created for them.
+     *
+     * @param aGeneration {@link IdentityMap#getGeneration()} from before the query
+     */
+    void setIdentityMap(IdentityMap aMap, long aGeneration) {
+        Cursor c = getWrappedCursor();
+        int idIndex = c != null ? c.getColumnIndex(BaseColumns._ID) : -1;
+        if (aMap == null || idIndex == -1) {
+            mIdentityMap = null;
+            return;
+        }
+        mIdentityMap = aMap;
+        mGeneration = aGeneration;
+        mSignature = IdentityMap.signature(mFactory, c.getColumnNames());
+        mIdIndex = idIndex;
+    }
+
     public List<T> getList() {
         Cursor c = getWrappedCursor();
         List<T> list = new ArrayList<T>(c.getCount());
@@ -84,10 +118,24 @@ public class ObjectCursor<T> extends CursorWrapper {
             return prev;
         }
 
+        final IdentityMap identityMap = mIdentityMap;
+        final long id = identityMap != null && !c.isNull(mIdIndex) ? c.getLong(mIdIndex) : -1;
+        if (id > 0) {
+            @SuppressWarnings("unchecked")
+            final T shared = (T) identityMap.get(id, mSignature, mGeneration);
+            if (shared != null) {
+                mCache.put(currentPosition, shared);
+                return shared;
+            }
+        }
+
         mGetter.swapCursor(c, false);
         // Get the object at the current position and add it to the cache.
         final T model = mFactory.createFromCursorGetter(mGetter);
         mCache.put(currentPosition, model);
+        if (id > 0 && model != null) {
+            identityMap.put(id, mSignature, model, mGeneration);
+        }
         return model;
     }
 
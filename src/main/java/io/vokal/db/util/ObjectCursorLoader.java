@@ -17,14 +17,23 @@ package io.vokal.db.util;
 
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BaseColumns;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.AsyncTaskLoader;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.List;
+
+import io.vokal.db.IdentityMap;
+import io.vokal.db.LocalDataStore;
 
 
 /**
@@ -50,6 +59,17 @@ public class ObjectCursorLoader<T> extends AsyncTaskLoader<ObjectCursor<T>> {
 
     private int mDebugDelayMs = 0;
 
+    /** Ignores notifications for rows that neither are nor will be part of the result. */
+    private boolean            mFilterRowChanges;
+    private RowChangeObserver  mRowObserver;
+    private volatile long[]    mRowIds;
+    private final Handler      mMainHandler = new Handler(Looper.getMainLooper());
+
+    private LocalDataStore mDataStore;
+
+    /** Whether reading a column missing from a pushed down projection throws. */
+    private final boolean mStrictColumns;
+
     public ObjectCursorLoader(Context context, Uri uri, String[] projection,
                               String selection, String[] selectionArgs, String sortOrder,
                               CursorCreator<T> factory) {
@@ -72,6 +92,7 @@ public class ObjectCursorLoader<T> extends AsyncTaskLoader<ObjectCursor<T>> {
         mSortOrder = sortOrder;
 
         mFactory = factory;
+        mStrictColumns = isDebuggable(context);
     }
 
     public ObjectCursorLoader(Context context, Uri uri, CursorCreator<T> factory) {
@@ -81,20 +102,34 @@ public class ObjectCursorLoader<T> extends AsyncTaskLoader<ObjectCursor<T>> {
     /* Runs on a worker thread */
     @Override
     public ObjectCursor<T> loadInBackground() {
-        final Cursor inner = getContext().getContentResolver().query(mUri, mProjection,
-                                                                     mSelection, mSelectionArgs, mSortOrder);
+        final String[] projection = getProjection(mProjection, mFactory, mFilterRowChanges);
+        final IdentityMap identityMap = IdentityMap.forUri(mUri);
+        final long generation = identityMap != null ? identityMap.getGeneration() : 0;
+        final Cursor inner = mDataStore != null
+                ? mDataStore.query(mUri, projection, mSelection, mSelectionArgs, mSortOrder)
+                : getContext().getContentResolver().query(mUri, projection, mSelection, mSelectionArgs, mSortOrder);
         if (inner == null) {
             return null;
         }
 
         // Ensure the cursor window is filled
         inner.getCount();
-        inner.registerContentObserver(mObserver);
+        if (!mFilterRowChanges) {
+            inner.registerContentObserver(mObserver);
+        }
 
         // Modifications to the ObjectCursor, create an Object Cursor and fill the cache.
         final ObjectCursor<T> cursor = getObjectCursor(inner);
+        cursor.setStrictColumns(mStrictColumns && projection != mProjection);
+        if (identityMap != null) {
+            cursor.setIdentityMap(identityMap, generation);
+        }
         cursor.fillCache();
 
+        if (mFilterRowChanges) {
+            mRowIds = collectRowIds(inner);
+        }
+
         try {
             if (mDebugDelayMs > 0) {
                 Thread.sleep(mDebugDelayMs);
@@ -139,6 +174,10 @@ public class ObjectCursorLoader<T> extends AsyncTaskLoader<ObjectCursor<T>> {
      */
     @Override
     protected void onStartLoading() {
+        if (mFilterRowChanges && mRowObserver == null) {
+            mRowObserver = new RowChangeObserver();
+            getContext().getContentResolver().registerContentObserver(mUri, true, mRowObserver);
+        }
         if (mCursor != null) {
             deliverResult(mCursor);
         }
@@ -174,6 +213,12 @@ public class ObjectCursorLoader<T> extends AsyncTaskLoader<ObjectCursor<T>> {
             mCursor.close();
         }
         mCursor = null;
+
+        if (mRowObserver != null) {
+            getContext().getContentResolver().unregisterContentObserver(mRowObserver);
+            mRowObserver = null;
+        }
+        mRowIds = null;
     }
 
     @Override
@@ -201,6 +246,139 @@ public class ObjectCursorLoader<T> extends AsyncTaskLoader<ObjectCursor<T>> {
         return this;
     }
 
+    /**
+     * Only reload for changes to rows in the current result, or to rows that now match the
+     * selection. Requires a table content Uri whose rows include {@code _id}, and a provider that
+     * notifies item Uris for single row writes. Must be called before the loader is started.
+     *
+     * @return this object itself, for fluent chaining
+     */
+    public ObjectCursorLoader<T> setFilterRowChanges(boolean aFilter) {
+        mFilterRowChanges = aFilter;
+        return this;
+    }
+
+    /**
+     * Queries through {@code aStore} instead of the {@link android.content.ContentResolver}, which
+     * skips the resolver overhead when the provider runs in this process.
+     *
+     * @return this object itself, for fluent chaining
+     */
+    public ObjectCursorLoader<T> setDataStore(LocalDataStore aStore) {
+        mDataStore = aStore;
+        return this;
+    }
+
+    /**
+     * @return {@code aProjection}, or the columns declared by a {@link ProjectedCursorCreator} if
+     * it is null, with {@code _id} if {@code aWithId}
+     */
+    static String[] getProjection(String[] aProjection, CursorCreator<?> aFactory, boolean aWithId) {
+        if (aProjection != null || !(aFactory instanceof ProjectedCursorCreator)) {
+            return aProjection;
+        }
+
+        String[] columns = ((ProjectedCursorCreator<?>) aFactory).getColumns();
+        if (aWithId && !Arrays.asList(columns).contains(BaseColumns._ID)) {
+            columns = Arrays.copyOf(columns, columns.length + 1);
+            columns[columns.length - 1] = BaseColumns._ID;
+        }
+        return columns;
+    }
+
+    static boolean isDebuggable(Context aContext) {
+        try {
+            return (aContext.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        } catch (RuntimeException e) {
+            // mock contexts
+            return false;
+        }
+    }
+
+    private static long[] collectRowIds(Cursor aCursor) {
+        int index = aCursor.getColumnIndex(BaseColumns._ID);
+        if (index == -1 || !aCursor.moveToFirst()) {
+            return index == -1 ? null : new long[0];
+        }
+        long[] ids = new long[aCursor.getCount()];
+        int i = 0;
+        do {
+            ids[i++] = aCursor.getLong(index);
+        } while (aCursor.moveToNext());
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * @return true if {@code aUri} is an item Uri of this loader's table for a row that is not in
+     * the current result and does not match the selection
+     */
+    boolean isUnrelatedRowChange(Uri aUri) {
+        long[] ids = mRowIds;
+        if (aUri == null || ids == null) return false;
+
+        List<String> segments = aUri.getPathSegments();
+        List<String> own = mUri.getPathSegments();
+        if (segments.size() != own.size() + 1 || !segments.subList(0, own.size()).equals(own)) {
+            return false;
+        }
+
+        long id;
+        try {
+            id = Long.parseLong(segments.get(own.size()));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (Arrays.binarySearch(ids, id) >= 0) {
+            return false;
+        }
+
+        // an insert or update may have moved the row into the selection
+        Cursor c = getContext().getContentResolver().query(aUri, new String[] {BaseColumns._ID},
+                                                           mSelection, mSelectionArgs, null);
+        if (c == null) return false;
+        try {
+            return c.getCount() == 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Receives notifications on the notifying thread so unrelated row changes can be filtered
+     * without touching the UI thread.
+     */
+    private final class RowChangeObserver extends ContentObserver {
+
+        private final Runnable mContentChanged = new Runnable() {
+            @Override
+            public void run() {
+                onContentChanged();
+            }
+        };
+
+        RowChangeObserver() {
+            super(null);
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean aSelfChange) {
+            onChange(aSelfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean aSelfChange, Uri aUri) {
+            if (!isUnrelatedRowChange(aUri)) {
+                mMainHandler.post(mContentChanged);
+            }
+        }
+    }
+
     protected final Uri getUri() {
         return mUri;
     }
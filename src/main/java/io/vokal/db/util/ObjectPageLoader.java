@@ -0,0 +1,202 @@
+package io.vokal.db.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import io.vokal.db.LocalDataStore;
+
+/**
+ * Loads a {@link PagedObjectList} for tables too large to read into an {@link ObjectCursor}. Only
+ * the first page is read in the background load; later pages are read as the list is scrolled.
+ * When the table changes, the window is read again from its first row, keeping the scroll position.
+ */
+public class ObjectPageLoader<T> extends AsyncTaskLoader<PagedObjectList<T>> {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_PAGES = 6;
+
+    final ForceLoadContentObserver mObserver;
+
+    private final Uri              mUri;
+    private final String[]         mProjection;
+    private final String           mSelection;
+    private final String[]         mSelectionArgs;
+    private final String           mSortColumn;
+    private final boolean          mDescending;
+    private final CursorCreator<T> mFactory;
+
+    private int            mPageSize = DEFAULT_PAGE_SIZE;
+    private int            mMaxPages = DEFAULT_MAX_PAGES;
+    private LocalDataStore mDataStore;
+    private boolean        mObserving;
+
+    private final boolean mStrictColumns;
+
+    volatile PagedObjectList<T> mList;
+
+    /**
+     * @param sortColumn result column the rows are ordered by, then by {@code _id}. Null orders by
+     *                   {@code _id} alone.
+     */
+    public ObjectPageLoader(Context context, Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortColumn, boolean descending,
+                            CursorCreator<T> factory) {
+        super(context);
+
+        if (uri == null) {
+            throw new NullPointerException("The uri cannot be null");
+        }
+        if (factory == null) {
+            throw new NullPointerException("The factory cannot be null");
+        }
+
+        mObserver = new ForceLoadContentObserver();
+
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortColumn = sortColumn;
+        mDescending = descending;
+        mFactory = factory;
+        mStrictColumns = ObjectCursorLoader.isDebuggable(context);
+    }
+
+    public ObjectPageLoader(Context context, Uri uri, CursorCreator<T> factory) {
+        this(context, uri, null, null, null, null, false, factory);
+    }
+
+    /* Runs on a worker thread */
+    @Override
+    public PagedObjectList<T> loadInBackground() {
+        String[] projection = ObjectCursorLoader.getProjection(mProjection, mFactory, true);
+        PagedObjectList<T> list = new PagedObjectList<T>(getContext(), mDataStore, mUri, projection, mSelection,
+                                                         mSelectionArgs, mSortColumn, mDescending, mFactory,
+                                                         mPageSize, mMaxPages);
+        list.setStrictColumns(mStrictColumns && projection != mProjection);
+        PagedObjectList<T> previous = mList;
+        if (previous != null) {
+            list.load(previous.getStartKey(), previous.getStartPosition());
+        } else {
+            list.load(null, 0);
+        }
+        return list;
+    }
+
+    /* Runs on the UI thread */
+    @Override
+    public void deliverResult(PagedObjectList<T> list) {
+        if (isReset()) {
+            if (list != null) {
+                list.close();
+            }
+            return;
+        }
+        final PagedObjectList<T> oldList = mList;
+        mList = list;
+
+        if (isStarted()) {
+            super.deliverResult(list);
+        }
+
+        if (oldList != null && oldList != list && !oldList.isClosed()) {
+            oldList.close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            // pages are read into models and their cursors closed, so observe the Uri directly
+            getContext().getContentResolver().registerContentObserver(mUri, true, mObserver);
+            mObserving = true;
+        }
+        if (mList != null) {
+            deliverResult(mList);
+        }
+        if (takeContentChanged() || mList == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(PagedObjectList<T> list) {
+        if (list != null && !list.isClosed()) {
+            list.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        onStopLoading();
+
+        if (mList != null && !mList.isClosed()) {
+            mList.close();
+        }
+        mList = null;
+
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix); writer.print("mUri="); writer.println(mUri);
+        writer.print(prefix); writer.print("mProjection=");
+        writer.println(Arrays.toString(mProjection));
+        writer.print(prefix); writer.print("mSelection="); writer.println(mSelection);
+        writer.print(prefix); writer.print("mSelectionArgs=");
+        writer.println(Arrays.toString(mSelectionArgs));
+        writer.print(prefix); writer.print("mSortColumn="); writer.print(mSortColumn);
+        writer.print(mDescending ? " DESC" : " ASC");
+        writer.print(" mPageSize="); writer.print(mPageSize);
+        writer.print(" mMaxPages="); writer.println(mMaxPages);
+        writer.print(prefix); writer.print("mList="); writer.println(mList);
+    }
+
+    /**
+     * @return this object itself, for fluent chaining
+     */
+    public ObjectPageLoader<T> setPageSize(int aPageSize) {
+        if (aPageSize < 1) throw new IllegalArgumentException("page size must be at least 1");
+        mPageSize = aPageSize;
+        return this;
+    }
+
+    /**
+     * Sets how many pages are kept in memory, at least 2.
+     *
+     * @return this object itself, for fluent chaining
+     */
+    public ObjectPageLoader<T> setMaxPages(int aMaxPages) {
+        if (aMaxPages < 2) throw new IllegalArgumentException("at least 2 pages must be kept");
+        mMaxPages = aMaxPages;
+        return this;
+    }
+
+    /**
+     * @see ObjectCursorLoader#setDataStore(LocalDataStore)
+     */
+    public ObjectPageLoader<T> setDataStore(LocalDataStore aStore) {
+        mDataStore = aStore;
+        return this;
+    }
+
+    public abstract static interface Callbacks<T>
+            extends android.support.v4.app.LoaderManager.LoaderCallbacks<PagedObjectList<T>> {}
+}
@@ -0,0 +1,77 @@
+package io.vokal.db.util;
+
+import android.content.Context;
+import android.view.*;
+import android.widget.BaseAdapter;
+
+/**
+ * The {@link ObjectCursorAdapter} for a {@link PagedObjectList}. Rows whose page is still loading
+ * are bound with a null model and bound again once it arrives.
+ */
+public abstract class PagedObjectAdapter<T> extends BaseAdapter implements PagedObjectList.OnPagesChangedListener {
+
+    private final Context        mContext;
+    private final LayoutInflater mInflater;
+
+    private PagedObjectList<T> mList;
+
+    public PagedObjectAdapter(Context aContext, PagedObjectList<T> aList) {
+        mContext = aContext;
+        mInflater = LayoutInflater.from(aContext);
+        swapList(aList);
+    }
+
+    /**
+     * Replaces the list, e.g. from {@code onLoadFinished}. The old list is returned, not closed.
+     */
+    public PagedObjectList<T> swapList(PagedObjectList<T> aList) {
+        PagedObjectList<T> old = mList;
+        if (old == aList) return old;
+
+        if (old != null) old.setOnPagesChangedListener(null);
+        mList = aList;
+        if (aList != null) {
+            aList.setOnPagesChangedListener(this);
+            notifyDataSetChanged();
+        } else {
+            notifyDataSetInvalidated();
+        }
+        return old;
+    }
+
+    public PagedObjectList<T> getList() {
+        return mList;
+    }
+
+    @Override
+    public void onPagesChanged(PagedObjectList<?> aList) {
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mList != null && !mList.isClosed() ? mList.getCount() : 0;
+    }
+
+    @Override
+    public T getItem(int position) {
+        return mList != null ? mList.get(position) : null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mList != null ? mList.getItemId(position) : -1;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        T item = getItem(position);
+        View view = convertView != null ? convertView : newView(mContext, mInflater, parent, item);
+        bindView(mContext, view, item);
+        return view;
+    }
+
+    public abstract View newView(Context aContext, LayoutInflater aInflater, ViewGroup aParent, T aObject);
+
+    public abstract void bindView(Context aContext, View aView, T aObject);
+}
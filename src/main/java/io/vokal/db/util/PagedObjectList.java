@@ -0,0 +1,424 @@
+package io.vokal.db.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.vokal.db.IdentityMap;
+import io.vokal.db.LocalDataStore;
+import io.vokal.db.SimpleContentProvider;
+
+/**
+ * A window over a query's rows, read as models one page at a time. Each page is read by keyset:
+ * it continues after the sort key and {@code _id} of the previous page's last row, so a page costs
+ * the same at any depth, where {@code OFFSET} would skip every row before it. At most
+ * {@code maxPages} pages are kept; pages dropped from one end are read again when the user scrolls
+ * back.
+ * <p>
+ * Pages load on a background thread as {@link #get(int)} nears either end of the window, and the
+ * listener is called on the main thread. Use from the main thread only. The sort column must be a
+ * column of the result and should not contain nulls. Below API 11 its type cannot be read, so it
+ * must then be an INTEGER or TEXT table column.
+ *
+ * @see ObjectPageLoader
+ * @see PagedObjectAdapter
+ */
+public class PagedObjectList<T> {
+
+    private static final String TAG = PagedObjectList.class.getSimpleName();
+
+    public interface OnPagesChangedListener {
+        void onPagesChanged(PagedObjectList<?> aList);
+    }
+
+    private static final Executor PAGE_LOADER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable aRunnable) {
+            Thread thread = new Thread(aRunnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Context          mContext;
+    private final LocalDataStore   mDataStore;
+    private final Uri              mUri;
+    private final String[]         mProjection;
+    private final String           mSelection;
+    private final String[]         mSelectionArgs;
+    private final String           mSortColumn;
+    private final boolean          mDescending;
+    private final CursorCreator<T> mFactory;
+    private final int              mPageSize;
+    private final int              mMaxPages;
+
+    private final CursorGetter mGetter      = new CursorGetter();
+    private final Handler      mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Page<T>> mPages = new ArrayList<Page<T>>();
+    private int     mFirstPosition;
+    private boolean mHasNext;
+    private boolean mLoading;
+    private boolean mClosed;
+
+    private OnPagesChangedListener mListener;
+
+    // read by the loader's thread when it reloads the same window
+    private volatile Key mStartKey;
+    private volatile int mStartPosition;
+
+    PagedObjectList(Context aContext, LocalDataStore aDataStore, Uri aUri, String[] aProjection, String aSelection,
+                    String[] aSelectionArgs, String aSortColumn, boolean aDescending, CursorCreator<T> aFactory,
+                    int aPageSize, int aMaxPages) {
+        mContext = aContext;
+        mDataStore = aDataStore;
+        mUri = aUri;
+        mSelection = aSelection;
+        mSelectionArgs = aSelectionArgs;
+        mSortColumn = BaseColumns._ID.equals(aSortColumn) ? null : aSortColumn;
+        mDescending = aDescending;
+        mFactory = aFactory;
+        mPageSize = aPageSize;
+        mMaxPages = aMaxPages;
+        mProjection = withKeyColumns(aProjection, mSortColumn);
+    }
+
+    /**
+     * Reads the first page of the window synchronously, starting at the row with {@code aStart} or
+     * the one after it, or at the first row if null.
+     */
+    void load(Key aStart, int aStartPosition) {
+        Page<T> page = query(aStart, true, false);
+        if (page.size() == 0 && aStart != null) {
+            page = query(null, true, false);
+            aStartPosition = 0;
+        }
+        if (page.size() > 0) {
+            mPages.add(page);
+        }
+        mHasNext = page.more;
+        mFirstPosition = aStart != null ? aStartPosition : 0;
+        updateStart();
+    }
+
+    /**
+     * @see CursorGetter#setStrict(boolean)
+     */
+    void setStrictColumns(boolean aStrict) {
+        mGetter.setStrict(aStrict);
+    }
+
+    public void setOnPagesChangedListener(OnPagesChangedListener aListener) {
+        mListener = aListener;
+    }
+
+    /**
+     * @return the number of rows up to the end of the window. Grows as pages are read.
+     */
+    public int getCount() {
+        int count = mFirstPosition;
+        for (Page<T> page : mPages) {
+            count += page.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the model at the position, or null if its page is not in memory yet. Reading near
+     * either end of the window loads the next page.
+     */
+    public T get(int aPosition) {
+        prefetch(aPosition);
+
+        int offset = aPosition - mFirstPosition;
+        if (offset < 0) return null;
+        for (Page<T> page : mPages) {
+            if (offset < page.size()) return page.models.get(offset);
+            offset -= page.size();
+        }
+        return null;
+    }
+
+    /**
+     * @return the {@code _id} of the row at the position, or -1 if its page is not in memory
+     */
+    public long getItemId(int aPosition) {
+        int offset = aPosition - mFirstPosition;
+        if (offset < 0) return -1;
+        for (Page<T> page : mPages) {
+            if (offset < page.size()) return page.ids[offset];
+            offset -= page.size();
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if rows after the window have not been read yet
+     */
+    public boolean hasNext() {
+        return mHasNext;
+    }
+
+    public boolean isLoading() {
+        return mLoading;
+    }
+
+    public void close() {
+        mClosed = true;
+        mPages.clear();
+        mListener = null;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    Key getStartKey() {
+        return mStartKey;
+    }
+
+    int getStartPosition() {
+        return mStartPosition;
+    }
+
+    private void prefetch(int aPosition) {
+        if (mLoading || mClosed || mPages.isEmpty()) return;
+
+        int threshold = Math.max(1, mPageSize / 2);
+        if (mHasNext && aPosition >= getCount() - threshold) {
+            load(mPages.get(mPages.size() - 1).last, false);
+        } else if (mFirstPosition > 0 && aPosition < mFirstPosition + threshold) {
+            load(mPages.get(0).first, true);
+        }
+    }
+
+    private void load(final Key aFrom, final boolean aBackward) {
+        mLoading = true;
+        PAGE_LOADER.execute(new Runnable() {
+            @Override
+            public void run() {
+                Page<T> page = null;
+                try {
+                    page = query(aFrom, false, aBackward);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "failed to load page of " + mUri, e);
+                }
+
+                final Page<T> result = page;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(result, aBackward);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageLoaded(Page<T> aPage, boolean aBackward) {
+        mLoading = false;
+        if (mClosed || aPage == null) return;
+
+        if (aBackward) {
+            if (aPage.size() > 0) {
+                mPages.add(0, aPage);
+            }
+            // rows before the window may have been inserted or deleted since it was read
+            mFirstPosition = aPage.more ? Math.max(1, mFirstPosition - aPage.size()) : 0;
+            if (mPages.size() > mMaxPages) {
+                mPages.remove(mPages.size() - 1);
+                mHasNext = true;
+            }
+        } else {
+            if (aPage.size() > 0) {
+                mPages.add(aPage);
+            }
+            mHasNext = aPage.more;
+            if (mPages.size() > mMaxPages) {
+                mFirstPosition += mPages.remove(0).size();
+            }
+        }
+        updateStart();
+
+        if (mListener != null) {
+            mListener.onPagesChanged(this);
+        }
+    }
+
+    private void updateStart() {
+        mStartKey = mPages.isEmpty() ? null : mPages.get(0).first;
+        mStartPosition = mFirstPosition;
+    }
+
+    /* Runs on a worker thread */
+    private Page<T> query(Key aFrom, boolean aInclusive, boolean aBackward) {
+        String selection = mSelection;
+        String[] args = mSelectionArgs;
+        if (aFrom != null) {
+            selection = SimpleContentProvider.concatenateWhere(selection, keyset(aFrom, aInclusive, aBackward));
+            String[] keyArgs = mSortColumn == null
+                    ? new String[] {Long.toString(aFrom.id)}
+                    : new String[] {aFrom.sort, aFrom.sort, Long.toString(aFrom.id)};
+            args = SimpleContentProvider.appendSelectionArgs(args, keyArgs);
+        }
+
+        // one extra row tells whether there is another page
+        IdentityMap identityMap = IdentityMap.forUri(mUri);
+        long generation = identityMap != null ? identityMap.getGeneration() : 0;
+        Uri uri = mUri.buildUpon()
+                .appendQueryParameter(SimpleContentProvider.PARAM_LIMIT, Integer.toString(mPageSize + 1))
+                .build();
+        Cursor c = mDataStore != null
+                ? mDataStore.query(uri, mProjection, selection, args, orderBy(aBackward))
+                : mContext.getContentResolver().query(uri, mProjection, selection, args, orderBy(aBackward));
+
+        Page<T> page = new Page<T>();
+        if (c == null) return page;
+        try {
+            int idIndex = c.getColumnIndexOrThrow(BaseColumns._ID);
+            int sortIndex = mSortColumn != null ? c.getColumnIndexOrThrow(mSortColumn) : -1;
+            int count = Math.min(c.getCount(), mPageSize);
+
+            page.more = c.getCount() > mPageSize;
+            page.ids = new long[count];
+            page.models = new ArrayList<T>(count);
+            Object signature = identityMap != null ? IdentityMap.signature(mFactory, c.getColumnNames()) : null;
+            mGetter.swapCursor(c, false);
+            for (int i = 0; i < count && c.moveToNext(); i++) {
+                page.ids[i] = c.getLong(idIndex);
+                page.models.add(createModel(identityMap, signature, generation, page.ids[i]));
+
+                Key key = readKey(c, sortIndex, page.ids[i]);
+                if (i == 0) page.first = key;
+                page.last = key;
+            }
+        } finally {
+            c.close();
+        }
+
+        if (aBackward) {
+            // read in reverse order from the start of the window
+            Collections.reverse(page.models);
+            for (int i = 0, j = page.ids.length - 1; i < j; i++, j--) {
+                long id = page.ids[i];
+                page.ids[i] = page.ids[j];
+                page.ids[j] = id;
+            }
+            Key first = page.first;
+            page.first = page.last;
+            page.last = first;
+        }
+        return page;
+    }
+
+    private T createModel(IdentityMap aIdentityMap, Object aSignature, long aGeneration, long aId) {
+        if (aIdentityMap != null) {
+            @SuppressWarnings("unchecked")
+            T shared = (T) aIdentityMap.get(aId, aSignature, aGeneration);
+            if (shared != null) return shared;
+        }
+        T model = mFactory.createFromCursorGetter(mGetter);
+        if (aIdentityMap != null && model != null) {
+            aIdentityMap.put(aId, aSignature, model, aGeneration);
+        }
+        return model;
+    }
+
+    /*
+     * selection arguments are bound as text, so numeric keys are cast back to their type
+     */
+    private String keyset(Key aFrom, boolean aInclusive, boolean aBackward) {
+        String op = mDescending != aBackward ? "<" : ">";
+        String idOp = aInclusive ? op + "=" : op;
+        if (mSortColumn == null) {
+            return BaseColumns._ID + idOp + "?";
+        }
+        String arg;
+        switch (aFrom.type) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                arg = "CAST(? AS INTEGER)";
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                arg = "CAST(? AS REAL)";
+                break;
+            default:
+                arg = "?";
+                break;
+        }
+        return String.format("%1$s%2$s%5$s OR (%1$s=%5$s AND %3$s%4$s?)",
+                             mSortColumn, op, BaseColumns._ID, idOp, arg);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Key readKey(Cursor aCursor, int aSortIndex, long aId) {
+        if (aSortIndex == -1) return new Key(null, Cursor.FIELD_TYPE_NULL, aId);
+
+        int type = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? aCursor.getType(aSortIndex) : Cursor.FIELD_TYPE_STRING;
+        switch (type) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return new Key(Long.toString(aCursor.getLong(aSortIndex)), type, aId);
+            case Cursor.FIELD_TYPE_FLOAT:
+                // getString() rounds to 15 digits, toString() keeps every bit of the double
+                return new Key(Double.toString(aCursor.getDouble(aSortIndex)), type, aId);
+            default:
+                return new Key(aCursor.getString(aSortIndex), type, aId);
+        }
+    }
+
+    private String orderBy(boolean aBackward) {
+        String direction = mDescending != aBackward ? " DESC" : " ASC";
+        String id = BaseColumns._ID + direction;
+        return mSortColumn == null ? id : mSortColumn + direction + ", " + id;
+    }
+
+    private static String[] withKeyColumns(String[] aProjection, String aSortColumn) {
+        if (aProjection == null) return null;
+
+        List<String> columns = new ArrayList<String>(aProjection.length + 2);
+        Collections.addAll(columns, aProjection);
+        if (!columns.contains(BaseColumns._ID)) columns.add(BaseColumns._ID);
+        if (aSortColumn != null && !columns.contains(aSortColumn)) columns.add(aSortColumn);
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * Position of a row in the sort order.
+     */
+    static final class Key {
+        final String sort;
+        final int    type;
+        final long   id;
+
+        Key(String aSort, int aType, long aId) {
+            sort = aSort;
+            type = aType;
+            id = aId;
+        }
+    }
+
+    private static final class Page<T> {
+        List<T> models = Collections.emptyList();
+        long[]  ids    = new long[0];
+        Key     first;
+        Key     last;
+        boolean more;
+
+        int size() {
+            return ids.length;
+        }
+    }
+}
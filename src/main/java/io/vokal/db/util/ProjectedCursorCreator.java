@@ -0,0 +1,16 @@
+package io.vokal.db.util;
+
+/**
+ * A {@link CursorCreator} that declares the columns it reads. Loaders given a null projection
+ * query only these columns, so large columns the creator never reads are not copied into the
+ * cursor window. In debuggable apps, reading a column that is not declared throws.
+ * @param <T>
+ */
+public interface ProjectedCursorCreator<T> extends CursorCreator<T> {
+
+    /**
+     * @return the result columns {@link #createFromCursorGetter} reads, including table prefixes for
+     * joins, e.g. {@code user_name}
+     */
+    String[] getColumns();
+}
@@ -0,0 +1,118 @@
+package io.vokal.db.util;
+
+import android.content.ContentValues;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static io.vokal.db.util.RowStreamWriter.*;
+
+/**
+ * Reads rows written by {@link RowStreamWriter}. The same {@link ContentValues} instance is
+ * returned for every row and is only valid until the next call to {@link #next()}, so memory use
+ * does not grow with the number of rows. I/O failures, and a stream that ends without the end
+ * marker, are rethrown as {@link IllegalStateException}.
+ */
+public class RowStreamReader implements Iterator<ContentValues>, Closeable {
+
+    private final DataInputStream   mIn;
+    private final ArrayList<String> mColumns = new ArrayList<String>();
+    private final ContentValues     mValues  = new ContentValues();
+
+    private int     mPendingColumns = -1;
+    private boolean mFinished;
+
+    public RowStreamReader(InputStream aIn) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(aIn, 8192));
+        int version = mIn.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported row stream version " + version);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mFinished) return false;
+        if (mPendingColumns < 0) {
+            try {
+                mPendingColumns = mIn.readUnsignedShort();
+            } catch (EOFException e) {
+                // the writer failed before the end marker, the rows must not be committed
+                throw new IllegalStateException("row stream truncated", e);
+            } catch (IOException e) {
+                throw new IllegalStateException("row stream broken", e);
+            }
+            if (mPendingColumns == END_OF_ROWS) {
+                mFinished = true;
+            }
+        }
+        return !mFinished;
+    }
+
+    @Override
+    public ContentValues next() {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        int count = mPendingColumns;
+        mPendingColumns = -1;
+        mValues.clear();
+        try {
+            for (int i = 0; i < count; i++) {
+                String column = readColumn();
+                switch (mIn.readByte()) {
+                    case TYPE_NULL:
+                        mValues.putNull(column);
+                        break;
+                    case TYPE_LONG:
+                        mValues.put(column, mIn.readLong());
+                        break;
+                    case TYPE_DOUBLE:
+                        mValues.put(column, mIn.readDouble());
+                        break;
+                    case TYPE_STRING:
+                        mValues.put(column, new String(readBytes(), UTF_8));
+                        break;
+                    case TYPE_BLOB:
+                        mValues.put(column, readBytes());
+                        break;
+                    default:
+                        throw new IOException("unknown value type in row stream");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("row stream broken", e);
+        }
+        return mValues;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private String readColumn() throws IOException {
+        int index = mIn.readUnsignedShort();
+        if (index < mColumns.size()) {
+            return mColumns.get(index);
+        }
+        if (index != mColumns.size()) {
+            throw new IOException("invalid column reference in row stream");
+        }
+        String name = mIn.readUTF();
+        mColumns.add(name);
+        return name;
+    }
+
+    private byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[mIn.readInt()];
+        mIn.readFully(bytes);
+        return bytes;
+    }
+}
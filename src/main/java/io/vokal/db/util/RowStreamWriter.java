@@ -0,0 +1,109 @@
+package io.vokal.db.util;
+
+import android.content.ContentValues;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes {@link ContentValues} rows to a stream in the compact binary format read by
+ * {@link RowStreamReader}. Column names are written once and referenced by index afterwards.
+ * This class is <em>not</em> thread safe.
+ */
+public class RowStreamWriter implements Closeable {
+
+    static final int VERSION = 1;
+
+    static final int END_OF_ROWS = 0xFFFF;
+    static final int MAX_COLUMNS = 0xFFFE;
+
+    static final byte TYPE_NULL   = 0;
+    static final byte TYPE_LONG   = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_STRING = 3;
+    static final byte TYPE_BLOB   = 4;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final DataOutputStream     mOut;
+    private final Map<String, Integer> mColumns = new HashMap<String, Integer>();
+
+    private boolean mFinished;
+
+    public RowStreamWriter(OutputStream aOut) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(aOut, 8192));
+        mOut.writeByte(VERSION);
+    }
+
+    public void write(ContentValues aValues) throws IOException {
+        if (mFinished) throw new IllegalStateException("row stream already finished");
+        if (aValues.size() > MAX_COLUMNS) throw new IllegalArgumentException("too many columns in row");
+
+        mOut.writeShort(aValues.size());
+        for (Map.Entry<String, Object> entry : aValues.valueSet()) {
+            writeColumn(entry.getKey());
+            writeValue(entry.getValue());
+        }
+    }
+
+    /**
+     * Writes the end marker and flushes without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (!mFinished) {
+            mFinished = true;
+            mOut.writeShort(END_OF_ROWS);
+            mOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void writeColumn(String aName) throws IOException {
+        Integer index = mColumns.get(aName);
+        if (index != null) {
+            mOut.writeShort(index);
+        } else {
+            index = mColumns.size();
+            if (index >= MAX_COLUMNS) throw new IllegalStateException("too many distinct columns in row stream");
+            mColumns.put(aName, index);
+            mOut.writeShort(index);
+            mOut.writeUTF(aName);
+        }
+    }
+
+    private void writeValue(Object aValue) throws IOException {
+        if (aValue == null) {
+            mOut.writeByte(TYPE_NULL);
+        } else if (aValue instanceof Long || aValue instanceof Integer
+                || aValue instanceof Short || aValue instanceof Byte) {
+            mOut.writeByte(TYPE_LONG);
+            mOut.writeLong(((Number) aValue).longValue());
+        } else if (aValue instanceof Boolean) {
+            mOut.writeByte(TYPE_LONG);
+            mOut.writeLong((Boolean) aValue ? 1 : 0);
+        } else if (aValue instanceof Double || aValue instanceof Float) {
+            mOut.writeByte(TYPE_DOUBLE);
+            mOut.writeDouble(((Number) aValue).doubleValue());
+        } else if (aValue instanceof byte[]) {
+            byte[] blob = (byte[]) aValue;
+            mOut.writeByte(TYPE_BLOB);
+            mOut.writeInt(blob.length);
+            mOut.write(blob);
+        } else {
+            byte[] string = aValue.toString().getBytes(UTF_8);
+            mOut.writeByte(TYPE_STRING);
+            mOut.writeInt(string.length);
+            mOut.write(string);
+        }
+    }
+}